@@ -0,0 +1,217 @@
+package com.example.nfcthings;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends one file to any number of receivers while reading it only once.
+ *
+ * {@link #load} copies the source into a shared ring buffer and each call to
+ * {@link #send} streams from that buffer on its own thread with its own read
+ * cursor. The loader only ever waits for the fastest receiver, so a slow
+ * receiver cannot stall the others. A receiver that falls a full ring behind
+ * fails instead. The ring is sized to hold the whole file when possible, so
+ * every receiver can start from the first byte, including ones that join after
+ * loading has finished. Larger files can only be joined while the first ring
+ * is still buffered.
+ */
+public class FanOutSession {
+
+    /** Ring size limit; files up to this size can be joined at any time */
+    public static final int MAX_CAPACITY = 16 * 1024 * 1024;
+
+    private final String fileName;
+    private final long fileSize;
+    private final byte[] ring;
+    private byte codec = TransferSender.CODEC_AUTO;
+    private byte[] fileDigest;
+
+    private final Object lock = new Object();
+    private final List<Reader> readers = new ArrayList<>();
+    private boolean joined;
+    private long written;
+    private boolean finished;
+    private IOException loadError;
+
+    public FanOutSession(String fileName, long fileSize) {
+        this(fileName, fileSize, (int) Math.max(TransferProtocol.CHUNK_SIZE, Math.min(fileSize, MAX_CAPACITY)));
+    }
+
+    FanOutSession(String fileName, long fileSize, int capacity) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Use a codec and digest computed ahead of time, so receivers skip
+     * sampling and hashing. Must be called before the first {@link #send}.
+     */
+    public void setPlan(byte codec, byte[] fileDigest) {
+        this.codec = codec;
+        this.fileDigest = fileDigest;
+    }
+
+    /**
+     * Read the source into the ring. Blocks until the source is exhausted.
+     *
+     * @throws InterruptedIOException if the thread is interrupted; the session is aborted
+     */
+    public void load(InputStream source) throws IOException {
+        byte[] buffer = new byte[TransferProtocol.CHUNK_SIZE];
+        try {
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                // A cancelled preparation stops within a chunk instead of reading the whole file
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Loading " + fileName + " was interrupted");
+                }
+                synchronized (lock) {
+                    awaitSpace(read);
+                    int position = (int) (written % ring.length);
+                    int first = Math.min(read, ring.length - position);
+                    System.arraycopy(buffer, 0, ring, position, first);
+                    System.arraycopy(buffer, first, ring, 0, read - first);
+                    written += read;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            abort(e);
+            throw e;
+        }
+
+        synchronized (lock) {
+            finished = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until {@code count} more bytes fit without overwriting data the
+     * fastest receiver has not read yet
+     */
+    private void awaitSpace(int count) throws IOException {
+        while (written + count - fastestPosition() > ring.length) {
+            if (joined && readers.isEmpty()) {
+                throw new IOException("Every receiver left before the file was loaded");
+            }
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for receivers", e);
+            }
+        }
+    }
+
+    private long fastestPosition() {
+        long fastest = 0;
+        for (Reader reader : readers) {
+            fastest = Math.max(fastest, reader.position);
+        }
+        return fastest;
+    }
+
+    /**
+     * Fail every current and future receiver, e.g. when the source cannot be opened
+     */
+    public void abort(IOException error) {
+        synchronized (lock) {
+            loadError = error;
+            finished = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Number of receivers currently being sent to
+     */
+    int getReaderCount() {
+        synchronized (lock) {
+            return readers.size();
+        }
+    }
+
+    /**
+     * Stream the file to one receiver. Blocks on the calling thread until it is sent.
+     */
+    public void send(OutputStream sink, SessionCrypto.ChunkCipher cipher,
+                     TransferUtils.TransferStatusListener listener) throws IOException {
+        Reader reader = new Reader();
+        synchronized (lock) {
+            readers.add(reader);
+            joined = true;
+        }
+
+        try {
+            new TransferSender(cipher).send(reader, fileName, fileSize, codec, fileDigest, sink, listener);
+        } catch (IOException e) {
+            if (listener != null) {
+                listener.onTransferError(e.getMessage());
+            }
+            throw e;
+        } finally {
+            synchronized (lock) {
+                readers.remove(reader);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Independent read cursor over the ring
+     */
+    private class Reader extends InputStream {
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            synchronized (lock) {
+                while (position == written && !finished) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for data", e);
+                    }
+                }
+
+                if (loadError != null) {
+                    throw new IOException("Source read failed", loadError);
+                }
+                if (written - position > ring.length) {
+                    throw new IOException("Receiver fell behind the shared buffer");
+                }
+                if (position == written) {
+                    return -1;
+                }
+
+                int count = (int) Math.min(length, written - position);
+                int start = (int) (position % ring.length);
+                int first = Math.min(count, ring.length - start);
+                System.arraycopy(ring, start, buffer, offset, first);
+                System.arraycopy(ring, 0, buffer, offset + first, count - first);
+                position += count;
+                // The loader may be waiting for this receiver to make room
+                lock.notifyAll();
+                return count;
+            }
+        }
+    }
+}
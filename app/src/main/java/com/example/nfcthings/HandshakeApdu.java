@@ -0,0 +1,185 @@
+package com.example.nfcthings;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * APDU exchange that carries the transfer handshake from a
+ * {@link HandshakeApduService} to a phone in NFC reader mode.
+ *
+ * The reader selects our AID and the card answers with the first segment of
+ * the handshake payload. Longer payloads are chained with the ISO 7816
+ * {@code 61xx} status and GET RESPONSE, so a typical handshake is one or two
+ * round trips. Everything here is plain Java so both sides can be exercised
+ * without NFC hardware.
+ */
+public final class HandshakeApdu {
+
+    /** Proprietary AID, must match res/xml/apduservice.xml */
+    static final byte[] AID = {(byte) 0xF0, 0x4E, 0x46, 0x43, 0x54, 0x48, 0x53};
+
+    static final byte[] SW_OK = {(byte) 0x90, 0x00};
+    static final byte[] SW_WRONG_LENGTH = {0x67, 0x00};
+    static final byte[] SW_CONDITIONS_NOT_SATISFIED = {0x69, (byte) 0x85};
+    static final byte[] SW_FILE_NOT_FOUND = {0x6A, (byte) 0x82};
+    static final byte[] SW_INS_NOT_SUPPORTED = {0x6D, 0x00};
+    static final byte SW1_MORE_DATA = 0x61;
+
+    static final int SEGMENT_SIZE = 250;
+    static final int MAX_PAYLOAD_SIZE = 4096;
+
+    private static final byte INS_SELECT = (byte) 0xA4;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+
+    private HandshakeApdu() {
+    }
+
+    /**
+     * SELECT by AID
+     */
+    public static byte[] selectCommand() {
+        byte[] command = new byte[6 + AID.length];
+        command[1] = INS_SELECT;
+        command[2] = 0x04;
+        command[4] = (byte) AID.length;
+        System.arraycopy(AID, 0, command, 5, AID.length);
+        return command;
+    }
+
+    /**
+     * GET RESPONSE for the next chained segment
+     */
+    public static byte[] getResponseCommand(int expectedLength) {
+        return new byte[]{0x00, INS_GET_RESPONSE, 0x00, 0x00, (byte) expectedLength};
+    }
+
+    /**
+     * Run the reader side of the exchange and return the handshake payload
+     *
+     * @return the payload, or null if the tag has no application with our AID,
+     *         e.g. a Type 4 NDEF tag
+     */
+    public static byte[] read(Transceiver transceiver) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] response = transceiver.transceive(selectCommand());
+        if (response != null && response.length == 2
+                && response[0] == SW_FILE_NOT_FOUND[0] && response[1] == SW_FILE_NOT_FOUND[1]) {
+            return null;
+        }
+
+        while (true) {
+            if (response == null || response.length < 2) {
+                throw new IOException("Truncated APDU response");
+            }
+
+            byte sw1 = response[response.length - 2];
+            byte sw2 = response[response.length - 1];
+            if (sw1 != SW_OK[0] && sw1 != SW1_MORE_DATA) {
+                throw new IOException(String.format("Handshake rejected: SW=%02X%02X", sw1, sw2));
+            }
+
+            payload.write(response, 0, response.length - 2);
+            if (payload.size() > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Handshake payload too large");
+            }
+            if (sw1 == SW_OK[0]) {
+                if (sw2 != SW_OK[1]) {
+                    throw new IOException(String.format("Handshake rejected: SW=%02X%02X", sw1, sw2));
+                }
+                return payload.toByteArray();
+            }
+
+            response = transceiver.transceive(getResponseCommand(sw2 & 0xFF));
+        }
+    }
+
+    /**
+     * Sends a command APDU and returns the response, e.g. {@code IsoDep::transceive}
+     */
+    public interface Transceiver {
+        byte[] transceive(byte[] command) throws IOException;
+    }
+
+    /**
+     * Card-side state machine answering the reader
+     */
+    public static class Card {
+        private byte[] payload;
+        // Offset of the next segment to send, or -1 until our AID is selected
+        private int offset = -1;
+
+        /**
+         * Set the handshake to serve, or null to refuse selection
+         */
+        public synchronized void setPayload(byte[] payload) {
+            this.payload = payload;
+            this.offset = -1;
+        }
+
+        /**
+         * Forget the selection, e.g. when the reader leaves the field
+         */
+        public synchronized void reset() {
+            offset = -1;
+        }
+
+        public synchronized byte[] process(byte[] command) {
+            if (command == null || command.length < 4) {
+                return SW_WRONG_LENGTH;
+            }
+
+            switch (command[1]) {
+                case INS_SELECT:
+                    if (!isSelectOfOurAid(command)) {
+                        offset = -1;
+                        return SW_FILE_NOT_FOUND;
+                    }
+                    if (payload == null) {
+                        // Nothing to share right now
+                        return SW_CONDITIONS_NOT_SATISFIED;
+                    }
+                    offset = 0;
+                    return nextSegment();
+
+                case INS_GET_RESPONSE:
+                    if (offset < 0 || payload == null) {
+                        return SW_CONDITIONS_NOT_SATISFIED;
+                    }
+                    return nextSegment();
+
+                default:
+                    return SW_INS_NOT_SUPPORTED;
+            }
+        }
+
+        private boolean isSelectOfOurAid(byte[] command) {
+            if (command[2] != 0x04 || command.length < 5 + AID.length) {
+                return false;
+            }
+            int length = command[4] & 0xFF;
+            return length == AID.length &&
+                    Arrays.equals(AID, Arrays.copyOfRange(command, 5, 5 + length));
+        }
+
+        private byte[] nextSegment() {
+            int count = Math.min(SEGMENT_SIZE, payload.length - offset);
+            int remaining = payload.length - offset - count;
+
+            byte[] response = new byte[count + 2];
+            System.arraycopy(payload, offset, response, 0, count);
+            offset += count;
+
+            if (remaining > 0) {
+                response[count] = SW1_MORE_DATA;
+                response[count + 1] = (byte) Math.min(remaining, SEGMENT_SIZE);
+            } else {
+                response[count] = SW_OK[0];
+                response[count + 1] = SW_OK[1];
+                offset = -1;
+            }
+            return response;
+        }
+    }
+}
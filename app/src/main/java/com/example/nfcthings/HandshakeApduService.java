@@ -0,0 +1,34 @@
+package com.example.nfcthings;
+
+
+import android.nfc.cardemulation.HostApduService;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Emulates a card that serves the current transfer handshake to a phone in
+ * reader mode. The handshake is set by the sender when a send session starts.
+ */
+public class HandshakeApduService extends HostApduService {
+    private static final String TAG = "HandshakeApduService";
+
+    private static final HandshakeApdu.Card CARD = new HandshakeApdu.Card();
+
+    /**
+     * Set the handshake payload to serve, or null to stop serving one
+     */
+    public static void setPayload(byte[] payload) {
+        CARD.setPayload(payload);
+    }
+
+    @Override
+    public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
+        return CARD.process(commandApdu);
+    }
+
+    @Override
+    public void onDeactivated(int reason) {
+        Log.d(TAG, "Deactivated: " + reason);
+        CARD.reset();
+    }
+}
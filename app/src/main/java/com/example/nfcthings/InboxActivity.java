@@ -0,0 +1,115 @@
+package com.example.nfcthings;
+
+
+import android.content.ActivityNotFoundException;
+import android.content.ComponentCallbacks2;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Grid of received files, newest first. The list is paged from the
+ * {@link InboxIndex} and thumbnails come from the {@link ThumbnailCache}, so
+ * the main thread never lists the directory or decodes an image.
+ */
+public class InboxActivity extends AppCompatActivity {
+    private static final String TAG = "InboxActivity";
+
+    private static final int SPAN_COUNT = 3;
+    private static final int THUMBNAIL_THREADS = 2;
+
+    // Pages and thumbnails on separate executors, so a page is never stuck behind decodes
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService thumbnailExecutor = Executors.newFixedThreadPool(THUMBNAIL_THREADS);
+
+    private File transferDirectory;
+    private InboxIndex index;
+    private ThumbnailCache thumbnailCache;
+    private InboxAdapter adapter;
+    private TextView emptyText;
+    private int shownCount = -1;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_inbox);
+
+        transferDirectory = TransferUtils.FileHelper.createTransferDirectory(this);
+        index = new InboxIndex(transferDirectory);
+        thumbnailCache = new ThumbnailCache(this, transferDirectory, thumbnailExecutor);
+        adapter = new InboxAdapter(index, thumbnailCache, indexExecutor, this::openEntry);
+
+        RecyclerView inboxList = findViewById(R.id.inboxList);
+        emptyText = findViewById(R.id.inboxEmpty);
+        inboxList.setLayoutManager(new GridLayoutManager(this, SPAN_COUNT));
+        inboxList.setHasFixedSize(true);
+        inboxList.setAdapter(adapter);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Pick up files received while we were away
+        indexExecutor.execute(() -> {
+            try {
+                if (index.rebuildIfMissing()) {
+                    Log.d(TAG, "Rebuilt inbox index");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error rebuilding inbox index", e);
+            }
+            int count = index.size();
+            runOnUiThread(() -> {
+                emptyText.setVisibility(count == 0 ? View.VISIBLE : View.GONE);
+                // Keep the scroll position when coming back from a viewer
+                if (count != shownCount) {
+                    shownCount = count;
+                    adapter.reset(count);
+                }
+            });
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            thumbnailCache.trimMemory();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        indexExecutor.shutdownNow();
+        thumbnailExecutor.shutdownNow();
+    }
+
+    private void openEntry(InboxIndex.Entry entry) {
+        File file = new File(transferDirectory, entry.name);
+        Uri uri = TransferUtils.FileHelper.getFileProviderUri(this, file);
+        String mimeType = TransferUtils.FileHelper.getMimeType(file);
+
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(uri, mimeType != null ? mimeType : "*/*");
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, R.string.no_app_to_open, Toast.LENGTH_SHORT).show();
+        }
+    }
+}
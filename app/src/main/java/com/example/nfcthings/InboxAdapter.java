@@ -0,0 +1,148 @@
+package com.example.nfcthings;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Pages received files out of an {@link InboxIndex} as the list scrolls.
+ *
+ * Only loaded pages are held in memory; the next page is read in the
+ * background once binding gets within {@link #PREFETCH_DISTANCE} of the end.
+ */
+public class InboxAdapter extends RecyclerView.Adapter<InboxAdapter.ViewHolder> {
+    private static final String TAG = "InboxAdapter";
+
+    static final int PAGE_SIZE = 120;
+    private static final int PREFETCH_DISTANCE = 40;
+
+    private final InboxIndex index;
+    private final ThumbnailCache thumbnails;
+    private final ExecutorService executor;
+    private final OnEntryClickListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<InboxIndex.Entry> entries = new ArrayList<>();
+    private int totalCount;
+    private boolean loadingPage;
+    // Bumped by reset() so pages requested before it are dropped
+    private int generation;
+
+    public interface OnEntryClickListener {
+        void onEntryClick(InboxIndex.Entry entry);
+    }
+
+    public InboxAdapter(InboxIndex index, ThumbnailCache thumbnails, ExecutorService executor,
+                        OnEntryClickListener listener) {
+        this.index = index;
+        this.thumbnails = thumbnails;
+        this.executor = executor;
+        this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Start paging from the newest file; {@code totalCount} comes from {@link InboxIndex#size()}
+     */
+    public void reset(int totalCount) {
+        this.totalCount = totalCount;
+        generation++;
+        loadingPage = false;
+        entries.clear();
+        notifyDataSetChanged();
+        loadNextPage();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_inbox, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        if (position >= entries.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+
+        InboxIndex.Entry entry = entries.get(position);
+        holder.name.setText(entry.name);
+        holder.details.setText(TransferUtils.FileHelper.getFormattedFileSize(entry.size) + ", "
+                + DateUtils.getRelativeTimeSpanString(entry.receivedAt));
+        thumbnails.load(entry, holder.thumbnail, R.drawable.ic_image_placeholder);
+        holder.itemView.setOnClickListener(v -> listener.onEntryClick(entry));
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // Position counted from the oldest file, which stays stable as pages are appended
+        return totalCount - 1 - position;
+    }
+
+    private void loadNextPage() {
+        int offset = entries.size();
+        if (loadingPage || offset >= totalCount) {
+            return;
+        }
+
+        loadingPage = true;
+        int requestGeneration = generation;
+        int count = totalCount;
+        executor.execute(() -> {
+            List<InboxIndex.Entry> page;
+            try {
+                page = index.readPage(count, offset, PAGE_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading inbox page at " + offset, e);
+                page = new ArrayList<>();
+            }
+
+            List<InboxIndex.Entry> loaded = page;
+            mainHandler.post(() -> {
+                if (requestGeneration != generation) {
+                    return;
+                }
+                loadingPage = false;
+                if (loaded.isEmpty()) {
+                    return;
+                }
+                entries.addAll(loaded);
+                notifyItemRangeInserted(offset, loaded.size());
+            });
+        });
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView thumbnail;
+        final TextView name;
+        final TextView details;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            thumbnail = itemView.findViewById(R.id.inboxThumbnail);
+            name = itemView.findViewById(R.id.inboxName);
+            details = itemView.findViewById(R.id.inboxDetails);
+        }
+    }
+}
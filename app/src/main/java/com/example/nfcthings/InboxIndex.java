@@ -0,0 +1,199 @@
+package com.example.nfcthings;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only index of the files received into a transfer directory.
+ *
+ * Records have a fixed size, so the inbox can read any page with one seek
+ * instead of listing and sorting the whole directory. Pages are returned
+ * newest first. A record is written with a single append, so a reader never
+ * sees a partial entry.
+ */
+public class InboxIndex {
+
+    static final String INDEX_FILE_NAME = ".inbox_index";
+    // Longest file name most file systems allow
+    static final int MAX_NAME_BYTES = 255;
+    // receivedAt, size, name length, name
+    static final int RECORD_SIZE = 8 + 8 + 2 + MAX_NAME_BYTES;
+
+    // A rebuild racing a receive indexes the new file among the newest records
+    private static final int RECENT_RECORDS = 16;
+
+    // Appends and rebuilds come from different threads and instances
+    private static final Object LOCK = new Object();
+
+    private final File directory;
+    private final File indexFile;
+
+    public InboxIndex(File directory) {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+    }
+
+    /**
+     * Index a newly received file. Without an index yet, the whole directory
+     * is indexed instead so older files are not left out.
+     */
+    public Entry append(File file) throws IOException {
+        Entry entry = new Entry(file.getName(), file.length(), file.lastModified());
+        synchronized (LOCK) {
+            if (rebuildIfMissing() || containsRecent(entry.name)) {
+                return entry;
+            }
+            try (FileOutputStream out = new FileOutputStream(indexFile, true)) {
+                out.write(encode(entry));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Number of indexed files
+     */
+    public int size() {
+        return (int) (indexFile.length() / RECORD_SIZE);
+    }
+
+    /**
+     * Read up to {@code limit} entries, newest first, skipping the {@code offset}
+     * newest. Offsets count from the first {@code count} entries, e.g. a
+     * {@link #size()} taken when paging started, so later appends do not shift pages.
+     */
+    public List<Entry> readPage(int count, int offset, int limit) throws IOException {
+        int newest = Math.min(count, size()) - 1 - offset;
+        int oldest = Math.max(0, newest - limit + 1);
+        if (newest < 0) {
+            return Collections.emptyList();
+        }
+
+        byte[] block = new byte[(newest - oldest + 1) * RECORD_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            file.seek((long) oldest * RECORD_SIZE);
+            file.readFully(block);
+        }
+
+        List<Entry> page = new ArrayList<>(newest - oldest + 1);
+        for (int i = newest - oldest; i >= 0; i--) {
+            page.add(decode(block, i * RECORD_SIZE));
+        }
+        return page;
+    }
+
+    /**
+     * Build the index from the directory contents if there is none yet, e.g.
+     * for files received before the index existed or after a cleanup
+     *
+     * @return whether the index was rebuilt
+     */
+    public boolean rebuildIfMissing() throws IOException {
+        synchronized (LOCK) {
+            if (indexFile.exists()) {
+                return false;
+            }
+
+            File[] files = directory.listFiles(file -> file.isFile()
+                    && !file.getName().equals(INDEX_FILE_NAME)
+                    && !file.getName().endsWith(TransferReceiver.PARTIAL_SUFFIX));
+            if (files == null) {
+                files = new File[0];
+            }
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+            File tempFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                for (File file : files) {
+                    buffer.write(encode(new Entry(file.getName(), file.length(), file.lastModified())));
+                }
+                buffer.writeTo(out);
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Cannot publish " + indexFile);
+            }
+            return true;
+        }
+    }
+
+    private boolean containsRecent(String name) throws IOException {
+        for (Entry entry : readPage(size(), 0, RECENT_RECORDS)) {
+            if (entry.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the index so it is rebuilt on next use, e.g. after files were deleted
+     */
+    public void invalidate() {
+        synchronized (LOCK) {
+            indexFile.delete();
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IOException("File name too long to index: " + entry.name);
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_SIZE);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeLong(entry.receivedAt);
+        out.writeLong(entry.size);
+        out.writeShort(name.length);
+        out.write(name);
+        out.write(new byte[MAX_NAME_BYTES - name.length]);
+        return record.toByteArray();
+    }
+
+    private static Entry decode(byte[] block, int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block, offset, RECORD_SIZE));
+        long receivedAt = in.readLong();
+        long size = in.readLong();
+        int nameLength = in.readUnsignedShort();
+        if (nameLength > MAX_NAME_BYTES) {
+            throw new IOException("Corrupt inbox index");
+        }
+        String name = new String(block, offset + RECORD_SIZE - MAX_NAME_BYTES, nameLength, StandardCharsets.UTF_8);
+        return new Entry(name, size, receivedAt);
+    }
+
+    /**
+     * One received file
+     */
+    public static class Entry {
+        public final String name;
+        public final long size;
+        public final long receivedAt;
+
+        Entry(String name, long size, long receivedAt) {
+            this.name = name;
+            this.size = size;
+            this.receivedAt = receivedAt;
+        }
+
+        /**
+         * Identifies this version of the file, so a replaced file gets a new thumbnail
+         */
+        public String getKey() {
+            return name + '/' + size + '/' + receivedAt;
+        }
+    }
+}
@@ -10,36 +10,52 @@ import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.NfcEvent;
 import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.Ndef;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainActivity extends AppCompatActivity implements NfcAdapter.CreateNdefMessageCallback {
 
@@ -49,19 +65,48 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
     private static final int REQUEST_PERMISSIONS = 1003;
     private static final int REQUEST_ENABLE_BT = 1004;
 
+    // Reader mode: skip the platform NDEF probe and sounds, and keep presence
+    // checks from interleaving with the short handshake APDU exchange
+    private static final int READER_FLAGS = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B
+            | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK | NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS;
+    private static final int READER_PRESENCE_CHECK_DELAY_MS = 250;
+    // A send session with no new receiver for this long ends and reader mode comes back
+    private static final int SEND_SESSION_IDLE_MS = 2 * 60 * 1000;
+
+    // Cold-start phases, in the order they are expected to end
+    static final String PHASE_CONTENT_VIEW = "contentView";
+    static final String PHASE_VIEWS = "views";
+    static final String PHASE_NFC_INTENT = "nfcIntent";
+    static final String PHASE_ADAPTERS = "adapters";
+    static final String PHASE_ADAPTER_SETUP = "adapterSetup";
+    static final String PHASE_PERMISSIONS = "permissions";
+
     // UI Components
-    private Button btnSelectImage, btnTakePhoto, btnSendImage;
+    private Button btnSelectImage, btnTakePhoto, btnSendImage, btnInbox;
     private ImageView imagePreview;
     private TextView statusText;
+    private CompoundButton switchLargeFiles;
 
     // NFC Components
     private NfcAdapter nfcAdapter;
     private PendingIntent pendingIntent;
     private IntentFilter[] intentFilters;
+    private boolean resumed;
+    private final AtomicInteger handshakeAttempts = new AtomicInteger();
 
     // Bluetooth Components
     private BluetoothAdapter bluetoothAdapter;
 
+    // Startup instrumentation
+    private final StartupTrace startupTrace = new StartupTrace();
+    private int pendingStartupSteps;
+
+    // Direct transfer session
+    private ExecutorService transferExecutor;
+    private SessionCrypto sendSession;
+    private ServerSocket sendServerSocket;
+    private TransferPreparer transferPreparer;
+
     // Current image data
     private Uri selectedImageUri;
     private String imageFileName;
@@ -70,34 +115,105 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // From the application, so tests can drive background work by hand
+        transferExecutor = ((NfcThingsApplication) getApplication()).newTransferExecutor();
+        long start = startupTrace.begin();
         setContentView(R.layout.activity_main);
+        startupTrace.record(PHASE_CONTENT_VIEW, start);
 
+        start = startupTrace.begin();
         initializeViews();
-        initializeNFC();
-        initializeBluetooth();
-        checkPermissions();
+        transferPreparer = new TransferPreparer(this, transferExecutor);
+        startupTrace.record(PHASE_VIEWS, start);
 
-        // Handle incoming NFC intent
+        // Fast path: a launch by an NFC tap is handled before any other setup
+        start = startupTrace.begin();
         handleNfcIntent(getIntent());
+        startupTrace.record(PHASE_NFC_INTENT, start);
+
+        // Adapter lookups are binder calls and permission prompts can wait for
+        // the first frame, so neither is on the launch path
+        pendingStartupSteps = 2;
+        transferExecutor.execute(this::lookUpAdapters);
+        Looper.myQueue().addIdleHandler(() -> {
+            long permissionsStart = startupTrace.begin();
+            checkPermissions();
+            startupTrace.record(PHASE_PERMISSIONS, permissionsStart);
+            onStartupStepDone();
+            return false;
+        });
+    }
+
+    /**
+     * Look up the adapters on a background thread, then finish their setup on the main thread
+     */
+    private void lookUpAdapters() {
+        long start = startupTrace.begin();
+        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
+        getBluetoothAdapter();
+        startupTrace.record(PHASE_ADAPTERS, start);
+
+        runOnUiThread(() -> {
+            if (isDestroyed()) {
+                return;
+            }
+            long setupStart = startupTrace.begin();
+            initializeNFC(adapter);
+            initializeBluetooth();
+            startupTrace.record(PHASE_ADAPTER_SETUP, setupStart);
+            onStartupStepDone();
+        });
+    }
+
+    private void onStartupStepDone() {
+        if (--pendingStartupSteps == 0 && !transferExecutor.isShutdown()) {
+            File directory = getFilesDir();
+            transferExecutor.execute(() -> startupTrace.writeTo(directory));
+        }
+    }
+
+    @VisibleForTesting
+    StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
+
+    /**
+     * The adapter is looked up off the main thread at startup, or on first use
+     * if an NFC launch needs it sooner
+     */
+    private synchronized BluetoothAdapter getBluetoothAdapter() {
+        if (bluetoothAdapter == null) {
+            bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+        return bluetoothAdapter;
     }
 
     private void initializeViews() {
         btnSelectImage = findViewById(R.id.btnSelectImage);
         btnTakePhoto = findViewById(R.id.btnTakePhoto);
         btnSendImage = findViewById(R.id.btnSendImage);
+        btnInbox = findViewById(R.id.btnInbox);
         imagePreview = findViewById(R.id.imagePreview);
         statusText = findViewById(R.id.statusText);
+        switchLargeFiles = findViewById(R.id.switchLargeFiles);
 
         btnSelectImage.setOnClickListener(v -> selectImageFromGallery());
         btnTakePhoto.setOnClickListener(v -> takePhoto());
-        btnSendImage.setOnClickListener(v -> enableNfcSending());
+        btnSendImage.setOnClickListener(v -> {
+            if (sendSession != null) {
+                stopSendSession();
+            } else {
+                enableNfcSending();
+            }
+        });
+        btnInbox.setOnClickListener(v -> startActivity(new Intent(this, InboxActivity.class)));
 
         btnSendImage.setEnabled(false);
         statusText.setText("Select an image to start sharing");
     }
 
-    private void initializeNFC() {
-        nfcAdapter = NfcAdapter.getDefaultAdapter(this);
+    private void initializeNFC(NfcAdapter adapter) {
+        nfcAdapter = adapter;
 
         if (nfcAdapter == null) {
             statusText.setText("NFC not supported on this device");
@@ -126,6 +242,12 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
         }
 
         intentFilters = new IntentFilter[]{ndefFilter};
+
+        // The adapter may arrive after onResume
+        if (resumed) {
+            nfcAdapter.enableForegroundDispatch(this, pendingIntent, intentFilters, null);
+            updateReaderMode();
+        }
     }
 
 //    private void initializeBluetooth() {
@@ -153,9 +275,9 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
 //    }
 
     private void initializeBluetooth() {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        BluetoothAdapter adapter = getBluetoothAdapter();
 
-        if (bluetoothAdapter == null) {
+        if (adapter == null) {
             Toast.makeText(this, "Bluetooth not supported", Toast.LENGTH_LONG).show();
             return;
         }
@@ -172,7 +294,7 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
             }
         }
 
-        if (!bluetoothAdapter.isEnabled()) {
+        if (!adapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
@@ -204,10 +326,22 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
     }
 
     private void selectImageFromGallery() {
-        Intent intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        Intent intent;
+        if (isLargeFileMode()) {
+            // Any file type: RAW photos, panoramas, videos
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.setType("*/*");
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+        } else {
+            intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        }
         startActivityForResult(intent, REQUEST_IMAGE_PICK);
     }
 
+    private boolean isLargeFileMode() {
+        return switchLargeFiles != null && switchLargeFiles.isChecked();
+    }
+
     private void takePhoto() {
         Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
         if (intent.resolveActivity(getPackageManager()) != null) {
@@ -226,11 +360,8 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
 
     private File createImageFile() {
         String fileName = "IMG_" + System.currentTimeMillis() + ".jpg";
-        File storageDir = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "NFCTransfer");
-
-        if (!storageDir.exists()) {
-            storageDir.mkdirs();
-        }
+        // Not the transfer directory, or the inbox would list our own photos as received
+        File storageDir = TransferUtils.FileHelper.createCaptureDirectory(this);
 
         return new File(storageDir, fileName);
     }
@@ -264,25 +395,92 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
     }
 
     private void displaySelectedImage() {
-        if (selectedImageUri != null) {
-            try {
-                InputStream inputStream = getContentResolver().openInputStream(selectedImageUri);
-                Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                imagePreview.setImageBitmap(bitmap);
+        Uri uri = selectedImageUri;
+        if (uri == null) {
+            return;
+        }
+        // The open session still serves the previous file's handshake
+        closeSendSession();
+        updateReaderMode();
+        boolean largeFileMode = isLargeFileMode();
+        int maxDimension = Math.max(imagePreview.getWidth(), 1024);
+        btnSendImage.setEnabled(false);
+
+        // Provider queries and decoding can block on slow storage, so keep them off the main thread
+        transferExecutor.execute(() -> {
+            String mimeType = TransferUtils.FileHelper.getMimeType(this, uri);
+            long fileSize = TransferUtils.FileHelper.getFileSize(this, uri);
+            String displayName = TransferUtils.FileHelper.getDisplayName(this, uri);
+            boolean sendable = TransferUtils.ValidationHelper.isSupportedMimeType(mimeType, largeFileMode) &&
+                    TransferUtils.ValidationHelper.isFileSizeValid(fileSize, largeFileMode);
+
+            Bitmap decoded = null;
+            boolean failed = false;
+            if (sendable && mimeType.startsWith("image/")) {
+                try {
+                    decoded = decodePreview(uri, maxDimension);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error loading image", e);
+                    failed = true;
+                }
+            }
+
+            Bitmap preview = decoded;
+            boolean previewFailed = failed;
+            runOnUiThread(() -> {
+                if (!uri.equals(selectedImageUri)) {
+                    // A newer selection replaced this one
+                    return;
+                }
+                if (!sendable) {
+                    transferPreparer.cancel();
+                    statusText.setText("Cannot send this file (" + TransferUtils.FileHelper.getFormattedFileSize(fileSize)
+                            + ")" + (largeFileMode ? "" : ". Enable large-file mode for files over 10 MB."));
+                    return;
+                }
+                if (previewFailed) {
+                    Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                if (preview != null) {
+                    imagePreview.setImageBitmap(preview);
+                } else {
+                    imagePreview.setImageResource(R.drawable.ic_image_placeholder);
+                }
 
                 // Extract filename
-                imageFileName = "shared_image_" + System.currentTimeMillis() + ".jpg";
+                imageFileName = displayName != null
+                        ? displayName : "shared_image_" + System.currentTimeMillis() + ".jpg";
+
+                // Get everything but the receiver ready before the tap
+                transferPreparer.prepare(uri, imageFileName);
 
                 btnSendImage.setEnabled(true);
                 statusText.setText("Image ready to share. Tap 'Send via NFC' and bring devices together.");
+            });
+        });
+    }
 
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Error loading image", e);
-                Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
-            }
+    /**
+     * Decode a downsampled preview so large images do not exhaust the heap
+     */
+    private Bitmap decodePreview(Uri uri, int maxDimension) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = getContentResolver().openInputStream(uri)) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        }
+
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= maxDimension ||
+                options.outHeight / (options.inSampleSize * 2) >= maxDimension) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+
+        try (InputStream inputStream = getContentResolver().openInputStream(uri)) {
+            return BitmapFactory.decodeStream(inputStream, null, options);
         }
     }
 
@@ -306,11 +504,238 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Create
 //}
 private void enableNfcSending() {
     if (nfcAdapter != null && selectedImageUri != null) {
+        final Uri uri = selectedImageUri;
+        btnSendImage.setEnabled(false);
+        statusText.setText("Preparing " + imageFileName + "...");
+
+        // The preparation started at selection may still be reading the file
+        transferExecutor.execute(() -> {
+            TransferPreparer.PreparedTransfer prepared;
+            try {
+                prepared = transferPreparer.take(uri);
+            } catch (InterruptedException e) {
+                // onDestroy shut the executor down
+                return;
+            }
+            runOnUiThread(() -> startSend(uri, prepared));
+        });
+    }
+}
+
+    private void startSend(Uri uri, TransferPreparer.PreparedTransfer prepared) {
+        if (isDestroyed() || !uri.equals(selectedImageUri)) {
+            // A newer selection replaced this one while it was being prepared
+            if (prepared != null) {
+                prepared.close();
+            }
+            return;
+        }
+        btnSendImage.setEnabled(true);
+
+        if (!startSecureSendSession(prepared)) {
+            statusText.setText("Connect both phones to the same Wi-Fi network or hotspot to send.");
+            return;
+        }
         Toast.makeText(this, "Bring devices together to share", Toast.LENGTH_SHORT).show();
         statusText.setText("NFC ready! Bring devices together to share image.");
-        // No need to call setNdefPushMessage — just rely on foreground dispatch
     }
-}
+
+    /**
+     * Generate a session key for the next tap and wait for the receiver on a
+     * TCP socket on the local network. The HCE handshake carries our address,
+     * port and key, so no pairing or discovery is needed.
+     *
+     * @param prepared the selection's preparation, or null to set up from scratch
+     * @return false if this device is on no network the receiver could reach
+     */
+    private boolean startSecureSendSession(TransferPreparer.PreparedTransfer prepared) {
+        closeSendSession();
+        boolean opened = openSendSession(prepared);
+        updateReaderMode();
+        return opened;
+    }
+
+    private boolean openSendSession(TransferPreparer.PreparedTransfer prepared) {
+        FanOutSession fanOut = null;
+        boolean loaded = false;
+        if (prepared != null) {
+            sendSession = prepared.session;
+            sendServerSocket = prepared.serverSocket;
+            fanOut = prepared.fanOut;
+            loaded = prepared.loaded;
+        }
+
+        if (sendServerSocket == null) {
+            // Preparation failed, or ran before the device joined a network;
+            // a loaded fan-out is kept either way
+            InetAddress address = TransferUtils.NetworkHelper.getLocalAddress();
+            if (address == null) {
+                closeSendSession();
+                return false;
+            }
+
+            try {
+                if (sendSession == null) {
+                    sendSession = SessionCrypto.generate();
+                }
+                sendServerSocket = TransferUtils.NetworkHelper.listen(address);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.e(TAG, "Error starting secure send session", e);
+                closeSendSession();
+                return false;
+            }
+        }
+
+        // Serve the handshake to phones in reader mode
+        HandshakeApduService.setPayload(TransferUtils.NFCHelper.createHandshakePayload(imageFileName,
+                sendServerSocket.getInetAddress().getHostAddress(), sendServerSocket.getLocalPort(), sendSession));
+
+        final SessionCrypto session = sendSession;
+        final ServerSocket serverSocket = sendServerSocket;
+        final Uri imageUri = selectedImageUri;
+        final String fileName = imageFileName;
+        final FanOutSession preparedFanOut = fanOut;
+        final boolean preparedLoaded = loaded;
+        transferExecutor.execute(() -> runFanOutSend(session, serverSocket, imageUri, fileName,
+                preparedFanOut, preparedLoaded));
+        btnSendImage.setText(R.string.stop_sending);
+        return true;
+    }
+
+    /**
+     * End the send session at the user's request and go back to receiving
+     */
+    private void stopSendSession() {
+        closeSendSession();
+        updateReaderMode();
+        statusText.setText("Sending stopped");
+    }
+
+    /**
+     * Accept receivers until the session is closed or no receiver has tapped
+     * for {@link #SEND_SESSION_IDLE_MS}. Every tap adds a receiver to the same
+     * fan-out, so the image is read from storage only once.
+     *
+     * @param fanOut fan-out from {@link TransferPreparer}, or null to create one on the first tap
+     * @param loaded whether {@code fanOut} already holds the whole file
+     */
+    private void runFanOutSend(SessionCrypto session, ServerSocket serverSocket, Uri imageUri,
+                               String fileName, FanOutSession fanOut, boolean loaded) {
+        try {
+            serverSocket.setSoTimeout(SEND_SESSION_IDLE_MS);
+            while (true) {
+                Socket socket = TransferUtils.NetworkHelper.accept(serverSocket);
+                if (fanOut == null) {
+                    long fileSize = TransferUtils.FileHelper.getFileSize(this, imageUri);
+                    fanOut = new FanOutSession(fileName, fileSize);
+                }
+                if (!loaded) {
+                    final FanOutSession loading = fanOut;
+                    transferExecutor.execute(() -> loadFanOut(loading, imageUri));
+                    loaded = true;
+                }
+
+                final FanOutSession target = fanOut;
+                transferExecutor.execute(() -> sendToReceiver(session, target, socket));
+            }
+        } catch (SocketTimeoutException e) {
+            Log.i(TAG, "No receiver for " + SEND_SESSION_IDLE_MS + " ms, ending fan-out session");
+        } catch (IOException e) {
+            // accept() fails once closeSendSession() closes the server socket
+            Log.d(TAG, "Fan-out session closed", e);
+        } finally {
+            closeQuietly(serverSocket);
+            // Receivers already connected keep their sockets
+            runOnUiThread(() -> {
+                if (serverSocket == sendServerSocket) {
+                    closeSendSession();
+                    updateReaderMode();
+                    statusText.setText("Send session ended. Tap 'Send via NFC' to share again.");
+                }
+            });
+        }
+    }
+
+    private void loadFanOut(FanOutSession fanOut, Uri imageUri) {
+        try (InputStream source = TransferUtils.FileHelper.openSourceStream(this, imageUri)) {
+            fanOut.load(source);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading image for fan-out", e);
+            fanOut.abort(e);
+        }
+    }
+
+    private void sendToReceiver(SessionCrypto session, FanOutSession fanOut, Socket socket) {
+        try (Socket receiver = socket) {
+            SessionCrypto.PeerKey peer = SessionCrypto.readHandshake(new DataInputStream(receiver.getInputStream()));
+            SessionCrypto.ChunkCipher cipher = session.deriveCipher(peer, session.getNonce(), peer.nonce);
+
+            fanOut.send(receiver.getOutputStream(), cipher, null);
+            runOnUiThread(() -> statusText.setText("Image sent successfully"));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.e(TAG, "Fan-out send failed", e);
+        }
+    }
+
+    /**
+     * Add a received file to the inbox and write its thumbnail now, so the
+     * inbox never has to decode the full file while scrolling
+     */
+    private void indexReceivedFile(File directory, File received) {
+        try {
+            InboxIndex.Entry entry = new InboxIndex(directory).append(received);
+            ThumbnailCache.writeThumbnail(this, received, entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Error indexing " + received.getName(), e);
+        }
+    }
+
+    private void startSecureReceive(TransferUtils.HandshakeData handshake) {
+        statusText.setText("Receiving " + handshake.fileName + " over Wi-Fi...");
+        transferExecutor.execute(() -> runSecureReceive(handshake));
+    }
+
+    private void runSecureReceive(TransferUtils.HandshakeData handshake) {
+        try (Socket socket = TransferUtils.NetworkHelper.connect(handshake.host, handshake.port)) {
+            // Answer with a key for an algorithm the sender offered and this platform has
+            SessionCrypto session = SessionCrypto.answer(handshake.peerKey);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            session.writeHandshake(out);
+            out.flush();
+
+            SessionCrypto.ChunkCipher cipher = session.deriveCipher(
+                    handshake.peerKey, handshake.peerKey.nonce, session.getNonce());
+            File directory = TransferUtils.FileHelper.createTransferDirectory(this);
+            File received = new TransferReceiver(cipher).receive(socket.getInputStream(), directory, null);
+            indexReceivedFile(directory, received);
+            runOnUiThread(() -> statusText.setText("Image received successfully: " + received.getName()));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.e(TAG, "Secure receive failed", e);
+            runOnUiThread(() -> Toast.makeText(this, "Error receiving image", Toast.LENGTH_SHORT).show());
+        }
+    }
+
+    /**
+     * Stop serving the handshake and accepting receivers. Callers then call
+     * updateReaderMode() so the phone can receive again.
+     */
+    private void closeSendSession() {
+        HandshakeApduService.setPayload(null);
+        closeQuietly(sendServerSocket);
+        sendServerSocket = null;
+        sendSession = null;
+        btnSendImage.setText(R.string.send_via_nfc);
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing server socket", e);
+            }
+        }
+    }
 
 
 //    @Override
@@ -348,19 +773,126 @@ private void enableNfcSending() {
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
         if (nfcAdapter != null) {
             nfcAdapter.enableForegroundDispatch(this, pendingIntent, intentFilters, null);
         }
+        updateReaderMode();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
         if (nfcAdapter != null) {
             nfcAdapter.disableForegroundDispatch(this);
+            nfcAdapter.disableReaderMode(this);
+        }
+    }
+
+    /**
+     * Poll for a sender in reader mode, unless we are sending ourselves: reader
+     * mode turns off card emulation, and our HandshakeApduService must stay
+     * reachable for the receiver. While it is on, foreground dispatch gets no
+     * tags, so onHandshakeTagDiscovered reads plain NDEF tags as well
+     */
+    private void updateReaderMode() {
+        if (nfcAdapter == null || !resumed) {
+            return;
+        }
+
+        if (sendSession == null) {
+            Bundle options = new Bundle();
+            options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, READER_PRESENCE_CHECK_DELAY_MS);
+            nfcAdapter.enableReaderMode(this, this::onHandshakeTagDiscovered, READER_FLAGS, options);
+        } else {
+            nfcAdapter.disableReaderMode(this);
+        }
+    }
+
+    /**
+     * Read the handshake from a sender's HandshakeApduService, or an NDEF
+     * message from any other tag. Runs on an NFC binder thread.
+     */
+    private void onHandshakeTagDiscovered(Tag tag) {
+        long start = SystemClock.elapsedRealtime();
+        int attempt = handshakeAttempts.incrementAndGet();
+
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            Log.i(TAG, "Handshake attempt " + attempt + ": tag does not support ISO-DEP, reading NDEF");
+            readNdefTag(tag);
+            return;
+        }
+
+        boolean notSender = false;
+        try {
+            isoDep.connect();
+            byte[] payload = HandshakeApdu.read(isoDep::transceive);
+            if (payload == null) {
+                notSender = true;
+            } else {
+                TransferUtils.HandshakeData handshake = TransferUtils.NFCHelper.parseHandshakePayload(payload);
+                Log.i(TAG, "Handshake attempt " + attempt + ": " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+                if (handshake != null) {
+                    runOnUiThread(() -> startSecureReceive(handshake));
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Handshake attempt " + attempt + " failed after "
+                    + (SystemClock.elapsedRealtime() - start) + " ms: " + e.getMessage());
+        } finally {
+            try {
+                isoDep.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing ISO-DEP", e);
+            }
+        }
+
+        // Type 4 NDEF tags speak ISO-DEP too, but reject our AID
+        if (notSender) {
+            Log.i(TAG, "Handshake attempt " + attempt + ": tag has no handshake service, reading NDEF");
+            readNdefTag(tag);
+        }
+    }
+
+    /**
+     * Read the NDEF message that foreground dispatch would have delivered.
+     * FLAG_READER_SKIP_NDEF_CHECK leaves nothing cached, so it is read here.
+     */
+    private void readNdefTag(Tag tag) {
+        Ndef ndef = Ndef.get(tag);
+        if (ndef == null) {
+            Log.i(TAG, "Tag does not support NDEF");
+            return;
+        }
+
+        try {
+            ndef.connect();
+            NdefMessage message = ndef.getNdefMessage();
+            if (message != null) {
+                runOnUiThread(() -> handleNdefMessage(message));
+            }
+        } catch (IOException | FormatException e) {
+            Log.i(TAG, "Reading NDEF tag failed: " + e.getMessage());
+        } finally {
+            try {
+                ndef.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing NDEF tag", e);
+            }
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        transferPreparer.cancel();
+        closeSendSession();
+        transferExecutor.shutdownNow();
+    }
+
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
@@ -376,20 +908,23 @@ private void enableNfcSending() {
             Parcelable[] rawMessages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
 
             if (rawMessages != null && rawMessages.length > 0) {
-                NdefMessage message = (NdefMessage) rawMessages[0];
-                String receivedData = new String(message.getRecords()[0].getPayload(), StandardCharsets.UTF_8);
+                handleNdefMessage((NdefMessage) rawMessages[0]);
+            }
+        }
+    }
 
-                // Skip language code (first 3 bytes for text record)
-                if (receivedData.length() > 3) {
-                    receivedData = receivedData.substring(3);
-                }
+    private void handleNdefMessage(NdefMessage message) {
+        String receivedData = new String(message.getRecords()[0].getPayload(), StandardCharsets.UTF_8);
 
-                Log.d(TAG, "Received NFC data: " + receivedData);
+        // Skip language code (first 3 bytes for text record)
+        if (receivedData.length() > 3) {
+            receivedData = receivedData.substring(3);
+        }
 
-                if (receivedData.startsWith("IMAGE_TRANSFER:")) {
-                    handleImageTransferRequest(receivedData);
-                }
-            }
+        Log.d(TAG, "Received NFC data: " + receivedData);
+
+        if (receivedData.startsWith("IMAGE_TRANSFER:")) {
+            handleImageTransferRequest(receivedData);
         }
     }
 
@@ -468,7 +1003,7 @@ private void enableNfcSending() {
     private void initiateBluetoothReceive(String fileName) {
         statusText.setText("Ready to receive: " + fileName + "\nAccept the Bluetooth file transfer.");
 
-        if (bluetoothAdapter != null) {
+        if (getBluetoothAdapter() != null) {
             // On Android 12+ (API 31+), need runtime permission for BLUETOOTH_ADVERTISE
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
                 if (ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_ADVERTISE)
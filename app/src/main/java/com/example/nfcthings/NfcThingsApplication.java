@@ -0,0 +1,22 @@
+package com.example.nfcthings;
+
+
+import android.app.Application;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Supplies app-wide dependencies, so tests can replace them with their own
+ * application class.
+ */
+public class NfcThingsApplication extends Application {
+
+    /**
+     * A new executor for one activity's background work, shut down by the
+     * activity when it is destroyed
+     */
+    ExecutorService newTransferExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.nfcthings;
+
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlaps disk writes and hashing with the socket reads of a transfer.
+ *
+ * The receive thread fills pooled slots and submits them. A write thread
+ * stores each slot at its file offset while a hash thread digests the same
+ * slot, and the slot returns to the pool once both are done with it. The data
+ * is never copied between stages and the file is never read back: the digest
+ * is complete as soon as the last slot is written.
+ */
+class ReceivePipeline implements Closeable {
+
+    private static final int POOL_SIZE = 4;
+
+    /**
+     * posix_fallocate(3). ENOSPC fails the transfer; any other error, e.g.
+     * EOPNOTSUPP, means the filesystem cannot allocate ahead.
+     */
+    static final Allocator FALLOCATE = (fd, size) -> {
+        try {
+            Os.posix_fallocate(fd, 0, size);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + size + " bytes", e);
+            }
+            return false;
+        }
+    };
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+
+    private final BlockingQueue<Slot> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Slot> writeQueue = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    private final BlockingQueue<Slot> hashQueue = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    private final Slot endOfStream = new Slot();
+
+    private final Thread writeThread;
+    private final Thread hashThread;
+
+    private volatile IOException error;
+    private long position;
+
+    /**
+     * @param expectedSize final file length, allocated up front so the
+     *                     positional writes never have to extend the file
+     * @param allocator    reserves the file's blocks, normally {@link #FALLOCATE}
+     * @throws IOException if the volume cannot hold {@code expectedSize} bytes
+     */
+    ReceivePipeline(File destFile, long expectedSize, Allocator allocator) throws IOException {
+        try {
+            digest = MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        file = new RandomAccessFile(destFile, "rw");
+        try {
+            allocate(file, expectedSize, allocator);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        channel = file.getChannel();
+
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool.add(new Slot());
+        }
+
+        writeThread = new Thread(() -> runStage(writeQueue, this::write), "transfer-write");
+        hashThread = new Thread(() -> runStage(hashQueue, this::hash), "transfer-hash");
+        writeThread.start();
+        hashThread.start();
+    }
+
+    /**
+     * Allocate the file's blocks now, so a full volume fails the transfer
+     * before the first chunk rather than midway. setLength() alone only
+     * creates a sparse file.
+     */
+    private static void allocate(RandomAccessFile file, long size, Allocator allocator) throws IOException {
+        if (size == 0) {
+            return;
+        }
+        if (!allocator.allocate(file.getFD(), size)) {
+            // The filesystem cannot allocate ahead; extend it sparsely
+            file.setLength(size);
+        }
+    }
+
+    /**
+     * Take a free slot, waiting until one of the stages releases it
+     */
+    Slot acquire() throws IOException {
+        checkError();
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a buffer", e);
+        }
+    }
+
+    /**
+     * Return a slot that was acquired but not filled
+     */
+    void recycle(Slot slot) {
+        pool.add(slot);
+    }
+
+    /**
+     * Hand the first {@code length} bytes of a slot to the write and hash stages
+     */
+    void submit(Slot slot, int length) throws IOException {
+        checkError();
+        slot.length = length;
+        slot.position = position;
+        slot.references.set(2);
+        position += length;
+
+        writeQueue.add(slot);
+        hashQueue.add(slot);
+    }
+
+    /**
+     * Wait for both stages to drain and flush the file to disk
+     *
+     * @return digest of every byte submitted
+     */
+    byte[] finish() throws IOException {
+        writeQueue.add(endOfStream);
+        hashQueue.add(endOfStream);
+        try {
+            writeThread.join();
+            hashThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing transfer", e);
+        }
+
+        checkError();
+        // Drop the reserved tail if the sender delivered less than announced
+        channel.truncate(position);
+        channel.force(false);
+        file.close();
+        return digest.digest();
+    }
+
+    /**
+     * Abort the pipeline. Safe to call after {@link #finish}.
+     */
+    @Override
+    public void close() {
+        writeThread.interrupt();
+        hashThread.interrupt();
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Already aborting
+        }
+    }
+
+    private void write(Slot slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(slot.data, 0, slot.length);
+        long offset = slot.position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private void hash(Slot slot) {
+        digest.update(slot.data, 0, slot.length);
+    }
+
+    private void runStage(BlockingQueue<Slot> queue, Stage stage) {
+        try {
+            while (true) {
+                Slot slot = queue.take();
+                if (slot == endOfStream) {
+                    return;
+                }
+
+                // After a failure keep releasing slots so the receive thread never blocks
+                if (error == null) {
+                    try {
+                        stage.process(slot);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+
+                if (slot.references.decrementAndGet() == 0) {
+                    pool.add(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Aborted by close()
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Failed to store received data", error);
+        }
+    }
+
+    private interface Stage {
+        void process(Slot slot) throws IOException;
+    }
+
+    /**
+     * Reserves disk blocks for a file before it is written
+     */
+    interface Allocator {
+        /**
+         * @return false if the filesystem cannot allocate ahead
+         * @throws IOException if the volume does not have {@code size} bytes free
+         */
+        boolean allocate(FileDescriptor fd, long size) throws IOException;
+    }
+
+    /**
+     * A pooled buffer and the file offset it belongs at
+     */
+    static class Slot {
+        final byte[] data = new byte[TransferProtocol.CHUNK_SIZE];
+        final AtomicInteger references = new AtomicInteger();
+        int length;
+        long position;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.nfcthings;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Ephemeral key exchange for a single transfer session.
+ *
+ * The sender's public keys and nonce travel over the NFC tap, which is the
+ * out-of-band channel that authenticates the local network socket. The sender
+ * offers a key for every algorithm it supports, X25519 first and P-256 always,
+ * because providers before Android 13 lack X25519. The receiver answers over
+ * the socket with one key, for the first offered algorithm it supports, and
+ * both sides derive the same AES-GCM key with HKDF-SHA256.
+ */
+public class SessionCrypto {
+
+    public static final int NONCE_SIZE = 16;
+    public static final int TAG_SIZE = 16;
+
+    static final String ALGORITHM_X25519 = "X25519";
+    static final String ALGORITHM_EC = "EC";
+    // Preferred first
+    private static final List<String> ALGORITHMS = Arrays.asList(ALGORITHM_X25519, ALGORITHM_EC);
+    private static final byte[] KEY_INFO = "nfcthings transfer key".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_ENCODED_KEY_SIZE = 512;
+    private static final int MAX_OFFERED_KEYS = 4;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // By algorithm, preferred first
+    private final Map<String, KeyPair> keyPairs;
+    private final byte[] nonce;
+
+    private SessionCrypto(Map<String, KeyPair> keyPairs, byte[] nonce) {
+        this.keyPairs = keyPairs;
+        this.nonce = nonce;
+    }
+
+    /**
+     * Generate the sender's key pairs, one for every algorithm this platform supports
+     */
+    public static SessionCrypto generate() throws GeneralSecurityException {
+        return generate(supportedAlgorithms());
+    }
+
+    /**
+     * Generate a key pair for {@code algorithm} only
+     *
+     * @throws NoSuchAlgorithmException if the algorithm is unknown or this platform lacks it
+     */
+    public static SessionCrypto generate(String algorithm) throws GeneralSecurityException {
+        return generate(Collections.singletonList(algorithm));
+    }
+
+    static SessionCrypto generate(List<String> algorithms) throws GeneralSecurityException {
+        Map<String, KeyPair> keyPairs = new LinkedHashMap<>();
+        for (String algorithm : algorithms) {
+            keyPairs.put(algorithm, newGenerator(algorithm).generateKeyPair());
+        }
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        return new SessionCrypto(keyPairs, nonce);
+    }
+
+    /**
+     * Generate the receiver's answer to a sender's offer: one key pair, for
+     * the first offered algorithm this platform supports
+     *
+     * @throws NoSuchAlgorithmException if this platform supports none of them
+     */
+    public static SessionCrypto answer(PeerKey offer) throws GeneralSecurityException {
+        return answer(offer, supportedAlgorithms());
+    }
+
+    static SessionCrypto answer(PeerKey offer, List<String> supported) throws GeneralSecurityException {
+        for (String algorithm : offer.encodedKeys.keySet()) {
+            if (supported.contains(algorithm)) {
+                return generate(algorithm);
+            }
+        }
+        throw new NoSuchAlgorithmException("No supported key algorithm in " + offer.encodedKeys.keySet());
+    }
+
+    /**
+     * The algorithms this platform can generate keys for, preferred first
+     */
+    static List<String> supportedAlgorithms() {
+        List<String> supported = new ArrayList<>();
+        for (String algorithm : ALGORITHMS) {
+            try {
+                newGenerator(algorithm);
+                supported.add(algorithm);
+            } catch (GeneralSecurityException e) {
+                // Not on this platform
+            }
+        }
+        return supported;
+    }
+
+    private static KeyPairGenerator newGenerator(String algorithm) throws GeneralSecurityException {
+        if (ALGORITHM_X25519.equals(algorithm)) {
+            return KeyPairGenerator.getInstance(ALGORITHM_X25519);
+        } else if (ALGORITHM_EC.equals(algorithm)) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(ALGORITHM_EC);
+            generator.initialize(new ECGenParameterSpec("secp256r1"), RANDOM);
+            return generator;
+        }
+        throw new NoSuchAlgorithmException("Unsupported key algorithm: " + algorithm);
+    }
+
+    public byte[] getNonce() {
+        return nonce.clone();
+    }
+
+    /**
+     * Write this side's nonce and public keys
+     */
+    public void writeHandshake(DataOutputStream out) throws IOException {
+        out.write(nonce);
+        out.writeByte(keyPairs.size());
+        for (Map.Entry<String, KeyPair> entry : keyPairs.entrySet()) {
+            byte[] encodedKey = entry.getValue().getPublic().getEncoded();
+            out.writeUTF(entry.getKey());
+            out.writeShort(encodedKey.length);
+            out.write(encodedKey);
+        }
+    }
+
+    /**
+     * Read the peer's nonce and public keys written by {@link #writeHandshake}
+     */
+    public static PeerKey readHandshake(DataInputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        in.readFully(nonce);
+
+        int count = in.readUnsignedByte();
+        if (count == 0 || count > MAX_OFFERED_KEYS) {
+            throw new IOException("Invalid handshake key count: " + count);
+        }
+        Map<String, byte[]> encodedKeys = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String algorithm = in.readUTF();
+            int keyLength = in.readUnsignedShort();
+            if (keyLength > MAX_ENCODED_KEY_SIZE) {
+                throw new IOException("Invalid handshake key length: " + keyLength);
+            }
+            byte[] encodedKey = new byte[keyLength];
+            in.readFully(encodedKey);
+            encodedKeys.put(algorithm, encodedKey);
+        }
+        return new PeerKey(nonce, encodedKeys);
+    }
+
+    /**
+     * Derive the chunk cipher shared with {@code peer}, using the first of our
+     * algorithms the peer has a key for. Both sides must pass the sender's
+     * nonce first so the HKDF salt matches.
+     */
+    public ChunkCipher deriveCipher(PeerKey peer, byte[] senderNonce, byte[] receiverNonce)
+            throws GeneralSecurityException {
+        String algorithm = null;
+        for (String candidate : keyPairs.keySet()) {
+            if (peer.encodedKeys.containsKey(candidate)) {
+                algorithm = candidate;
+                break;
+            }
+        }
+        if (algorithm == null) {
+            throw new GeneralSecurityException("Peer offers " + peer.encodedKeys.keySet()
+                    + ", expected one of " + keyPairs.keySet());
+        }
+
+        PublicKey peerKey = KeyFactory.getInstance(algorithm)
+                .generatePublic(new X509EncodedKeySpec(peer.encodedKeys.get(algorithm)));
+        KeyAgreement agreement = KeyAgreement.getInstance(
+                ALGORITHM_X25519.equals(algorithm) ? ALGORITHM_X25519 : "ECDH");
+        agreement.init(keyPairs.get(algorithm).getPrivate());
+        agreement.doPhase(peerKey, true);
+        byte[] sharedSecret = agreement.generateSecret();
+
+        byte[] salt = new byte[senderNonce.length + receiverNonce.length];
+        System.arraycopy(senderNonce, 0, salt, 0, senderNonce.length);
+        System.arraycopy(receiverNonce, 0, salt, senderNonce.length, receiverNonce.length);
+
+        return new ChunkCipher(hkdf(sharedSecret, salt, KEY_INFO, 32));
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) for outputs up to one hash length
+     */
+    static byte[] hkdf(byte[] inputKey, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        mac.update(info);
+        mac.update((byte) 1);
+        byte[] output = mac.doFinal();
+
+        byte[] key = new byte[length];
+        System.arraycopy(output, 0, key, 0, length);
+        return key;
+    }
+
+    /**
+     * Nonce and public keys received from the other side
+     */
+    public static class PeerKey {
+        public final byte[] nonce;
+        // Encoded public keys by algorithm, in the peer's order of preference
+        public final Map<String, byte[]> encodedKeys;
+
+        public PeerKey(byte[] nonce, Map<String, byte[]> encodedKeys) {
+            this.nonce = nonce;
+            this.encodedKeys = encodedKeys;
+        }
+    }
+
+    /**
+     * AES-GCM sealing of individual chunks.
+     *
+     * Each chunk uses its sequence number as the IV, so chunks cannot be
+     * reordered or replayed. The last chunk is sealed with a different AAD so a
+     * truncated stream fails to authenticate. Conscrypt uses the ARMv8 AES
+     * instructions when the CPU has them.
+     */
+    public static class ChunkCipher {
+        private static final byte[] AAD_DATA = {0};
+        private static final byte[] AAD_LAST = {1};
+
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] iv = new byte[12];
+        private long sequence;
+
+        ChunkCipher(byte[] keyBytes) throws GeneralSecurityException {
+            this.key = new SecretKeySpec(keyBytes, "AES");
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        /**
+         * Encrypt {@code length} bytes into {@code output}, returning the sealed length
+         */
+        public int seal(byte[] input, int offset, int length, byte[] output, boolean last)
+                throws GeneralSecurityException {
+            cipher.init(Cipher.ENCRYPT_MODE, key, nextIv());
+            cipher.updateAAD(last ? AAD_LAST : AAD_DATA);
+            return cipher.doFinal(input, offset, length, output, 0);
+        }
+
+        /**
+         * Decrypt and authenticate a sealed chunk into {@code output}, returning the plain length
+         */
+        public int open(byte[] input, int offset, int length, byte[] output, boolean last)
+                throws GeneralSecurityException {
+            cipher.init(Cipher.DECRYPT_MODE, key, nextIv());
+            cipher.updateAAD(last ? AAD_LAST : AAD_DATA);
+            return cipher.doFinal(input, offset, length, output, 0);
+        }
+
+        private GCMParameterSpec nextIv() {
+            long value = sequence++;
+            for (int i = iv.length - 1; i >= 4; i--) {
+                iv[i] = (byte) value;
+                value >>>= 8;
+            }
+            return new GCMParameterSpec(TAG_SIZE * 8, iv);
+        }
+    }
+}
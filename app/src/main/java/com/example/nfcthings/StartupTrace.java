@@ -0,0 +1,109 @@
+package com.example.nfcthings;
+
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records how long each cold-start phase takes and whether it ran on the main
+ * thread. Phases are logged as they end; {@link #writeTo(File)} appends the
+ * whole trace to a local log so launches can be compared later.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    static final String LOG_FILE_NAME = "startup_trace.log";
+    // Start over rather than grow without bound
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+
+    private final long origin = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * Timestamp to pass to {@link #record(String, long)} when the phase ends
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a phase that started at {@code startNanos} and ends now
+     */
+    public void record(String name, long startNanos) {
+        long end = System.nanoTime();
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        Phase phase = new Phase(name, startNanos - origin, end - startNanos, mainThread);
+        synchronized (this) {
+            phases.add(phase);
+        }
+        Log.d(TAG, phase.toString());
+    }
+
+    /**
+     * Phases in the order they ended
+     */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    /**
+     * Total time spent in phases that ran on the main thread
+     */
+    public synchronized long getMainThreadNanos() {
+        long total = 0;
+        for (Phase phase : phases) {
+            if (phase.mainThread) {
+                total += phase.durationNanos;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Append the trace to the startup log in {@code directory}. Does file I/O,
+     * so call it off the main thread.
+     */
+    public void writeTo(File directory) {
+        File file = new File(directory, LOG_FILE_NAME);
+        boolean append = file.length() < MAX_LOG_SIZE;
+
+        try (Writer writer = new FileWriter(file, append)) {
+            writer.write(String.format(Locale.US, "startup at %d%n", System.currentTimeMillis()));
+            for (Phase phase : getPhases()) {
+                writer.write(phase.toString());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing startup trace", e);
+        }
+    }
+
+    public static class Phase {
+        public final String name;
+        /** Start relative to the trace origin */
+        public final long offsetNanos;
+        public final long durationNanos;
+        public final boolean mainThread;
+
+        Phase(String name, long offsetNanos, long durationNanos, boolean mainThread) {
+            this.name = name;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+            this.mainThread = mainThread;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-16s +%6.1f ms %7.2f ms %s", name,
+                    offsetNanos / 1e6, durationNanos / 1e6, mainThread ? "main" : "background");
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.nfcthings;
+
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Two-level thumbnail cache for the inbox.
+ *
+ * Thumbnails are pre-scaled when a file is received and stored as small JPEGs
+ * in the cache directory, so scrolling only ever decodes those. Decoded
+ * thumbnails are kept in a memory LRU bounded by bytes. Disk reads and decodes
+ * run on the given executor; only memory hits are served on the main thread.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    static final int THUMBNAIL_SIZE = 256;
+    private static final int JPEG_QUALITY = 80;
+    private static final String DIRECTORY_NAME = "thumbnails";
+
+    private final File directory;
+    private final File sourceDirectory;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memoryCache;
+    // Pending load per view, so a recycled view does not show a stale thumbnail
+    private final Map<ImageView, Future<?>> pending = new WeakHashMap<>();
+
+    /**
+     * @param sourceDirectory directory holding the received files
+     * @param executor        executor for disk reads and decodes
+     */
+    public ThumbnailCache(Context context, File sourceDirectory, ExecutorService executor) {
+        this.directory = getDirectory(context);
+        this.sourceDirectory = sourceDirectory;
+        this.executor = executor;
+
+        // An eighth of the heap, as RGB_565 thumbnails of about 128KB each
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Show the thumbnail for {@code entry} in {@code view}, loading it in the
+     * background unless it is already in memory. Call on the main thread.
+     */
+    public void load(InboxIndex.Entry entry, ImageView view, int placeholder) {
+        Future<?> previous = pending.remove(view);
+        if (previous != null) {
+            previous.cancel(true);
+        }
+
+        String key = entry.getKey();
+        view.setTag(key);
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(placeholder);
+        pending.put(view, executor.submit(() -> {
+            Bitmap bitmap = loadFromDisk(entry);
+            if (bitmap == null) {
+                return;
+            }
+            memoryCache.put(key, bitmap);
+            mainHandler.post(() -> {
+                // The view may have been rebound while we were decoding
+                if (key.equals(view.getTag())) {
+                    view.setImageBitmap(bitmap);
+                    pending.remove(view);
+                }
+            });
+        }));
+    }
+
+    /**
+     * Drop decoded thumbnails, e.g. when the system is low on memory
+     */
+    public void trimMemory() {
+        memoryCache.evictAll();
+    }
+
+    private Bitmap loadFromDisk(InboxIndex.Entry entry) {
+        File thumbnail = getThumbnailFile(directory, entry);
+        if (!thumbnail.exists()) {
+            // Received before thumbnails were written, or evicted by the system
+            writeThumbnail(directory, new File(sourceDirectory, entry.name), entry);
+        }
+        if (Thread.currentThread().isInterrupted() || !thumbnail.exists()) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(thumbnail.getPath(), options);
+    }
+
+    /**
+     * Pre-scale and store the thumbnail of a received file. Does file I/O and
+     * decoding, so call it off the main thread.
+     */
+    public static void writeThumbnail(Context context, File file, InboxIndex.Entry entry) {
+        writeThumbnail(getDirectory(context), file, entry);
+    }
+
+    private static void writeThumbnail(File directory, File file, InboxIndex.Entry entry) {
+        Bitmap bitmap = createThumbnail(file);
+        if (bitmap == null) {
+            return;
+        }
+
+        File thumbnail = getThumbnailFile(directory, entry);
+        File tempFile = new File(directory, thumbnail.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing thumbnail for " + file.getName(), e);
+            tempFile.delete();
+            return;
+        } finally {
+            bitmap.recycle();
+        }
+        if (!tempFile.renameTo(thumbnail)) {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Decode {@code file} subsampled to about {@link #THUMBNAIL_SIZE} and crop it square
+     *
+     * @return the thumbnail, or null if the file is not an image or video
+     */
+    private static Bitmap createThumbnail(File file) {
+        String mimeType = TransferUtils.FileHelper.getMimeType(file);
+        if (mimeType != null && mimeType.startsWith("video/")) {
+            Bitmap frame = ThumbnailUtils.createVideoThumbnail(file.getPath(), MediaStore.Images.Thumbnails.MINI_KIND);
+            return frame != null ? ThumbnailUtils.extractThumbnail(frame, THUMBNAIL_SIZE, THUMBNAIL_SIZE,
+                    ThumbnailUtils.OPTIONS_RECYCLE_INPUT) : null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= THUMBNAIL_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap sampled = BitmapFactory.decodeFile(file.getPath(), options);
+        return sampled != null ? ThumbnailUtils.extractThumbnail(sampled, THUMBNAIL_SIZE, THUMBNAIL_SIZE,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT) : null;
+    }
+
+    private static File getDirectory(Context context) {
+        File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    private static File getThumbnailFile(File directory, InboxIndex.Entry entry) {
+        // Hash the key: file names can be up to the length limit on their own
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 4);
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name.append(".jpg").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.nfcthings;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Speculatively prepares a send as soon as a file is selected, so the tap only
+ * has to start the data flow.
+ *
+ * Preparation looks up the size and type, samples the file to pick the codec,
+ * loads files that fit the fan-out ring into memory while hashing them,
+ * generates the session key and opens the listening socket. Selecting another
+ * file cancels it and releases whatever it had opened; a send of the same
+ * file takes it over, finished or not.
+ */
+public class TransferPreparer {
+    private static final String TAG = "TransferPreparer";
+
+    private final Context context;
+    private final ExecutorService executor;
+    private Preparation current;
+
+    public TransferPreparer(Context context, ExecutorService executor) {
+        this.context = context.getApplicationContext();
+        this.executor = executor;
+    }
+
+    /**
+     * Start preparing a send of {@code uri}, cancelling any earlier preparation
+     */
+    public synchronized void prepare(Uri uri, String fileName) {
+        cancel();
+        Preparation preparation = new Preparation(uri, fileName);
+        preparation.future = executor.submit(preparation);
+        current = preparation;
+    }
+
+    /**
+     * Claim the preparation for {@code uri} and wait for it to finish. The
+     * caller then owns its socket. Blocks, so call it off the main thread.
+     *
+     * @return the prepared send, or null if it is for another file or failed
+     */
+    public PreparedTransfer take(Uri uri) throws InterruptedException {
+        Preparation preparation;
+        synchronized (this) {
+            preparation = current;
+            current = null;
+        }
+        if (preparation == null) {
+            return null;
+        }
+        if (!preparation.uri.equals(uri)) {
+            preparation.cancel();
+            return null;
+        }
+
+        // A running preparation is handed over rather than thrown away
+        try {
+            return preparation.future.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Preparation failed", e.getCause());
+        } catch (CancellationException e) {
+            Log.d(TAG, "Preparation was cancelled");
+        } catch (InterruptedException e) {
+            preparation.cancel();
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Cancel the current preparation, e.g. because the selection changed
+     */
+    public synchronized void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+
+    /**
+     * Everything a send needs that does not depend on the receiver
+     */
+    public static class PreparedTransfer {
+        public final Uri uri;
+        public final String fileName;
+        public final long fileSize;
+        public final String mimeType;
+        public final SessionCrypto session;
+        public final FanOutSession fanOut;
+        /** Whether {@link #fanOut} already holds the whole file */
+        public final boolean loaded;
+        /** Listening socket, or null if the device was on no local network */
+        public final ServerSocket serverSocket;
+
+        PreparedTransfer(Uri uri, String fileName, long fileSize, String mimeType, SessionCrypto session,
+                         FanOutSession fanOut, boolean loaded, ServerSocket serverSocket) {
+            this.uri = uri;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.mimeType = mimeType;
+            this.session = session;
+            this.fanOut = fanOut;
+            this.loaded = loaded;
+            this.serverSocket = serverSocket;
+        }
+
+        public void close() {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing prepared socket", e);
+                }
+            }
+        }
+    }
+
+    private class Preparation implements Callable<PreparedTransfer> {
+        final Uri uri;
+        final String fileName;
+        Future<PreparedTransfer> future;
+        volatile boolean cancelled;
+        volatile PreparedTransfer result;
+
+        Preparation(Uri uri, String fileName) {
+            this.uri = uri;
+            this.fileName = fileName;
+        }
+
+        void cancel() {
+            cancelled = true;
+            future.cancel(true);
+            // A preparation that already finished still holds its socket
+            PreparedTransfer prepared = result;
+            if (prepared != null) {
+                prepared.close();
+            }
+        }
+
+        @Override
+        public PreparedTransfer call() throws IOException, GeneralSecurityException {
+            long start = SystemClock.elapsedRealtime();
+            long fileSize = TransferUtils.FileHelper.getFileSize(context, uri);
+            String mimeType = TransferUtils.FileHelper.getMimeType(context, uri);
+            FanOutSession fanOut = new FanOutSession(fileName, fileSize);
+            boolean loaded = fileSize <= FanOutSession.MAX_CAPACITY;
+
+            byte[] sample = new byte[TransferProtocol.SAMPLE_SIZE];
+            try (InputStream source = TransferUtils.FileHelper.openSourceStream(context, uri)) {
+                int sampled = TransferSender.readFully(source, sample, sample.length);
+                byte codec = TransferProtocol.chooseCodec(sample, sampled);
+                checkCancelled();
+
+                byte[] digest = null;
+                if (loaded) {
+                    // One pass fills the ring and hashes the file for every receiver
+                    MessageDigest messageDigest = MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM);
+                    fanOut.load(new DigestInputStream(new SequenceInputStream(
+                            new ByteArrayInputStream(sample, 0, sampled), source), messageDigest));
+                    digest = messageDigest.digest();
+                }
+                fanOut.setPlan(codec, digest);
+            }
+            checkCancelled();
+
+            SessionCrypto session = SessionCrypto.generate();
+            ServerSocket serverSocket = null;
+            InetAddress address = TransferUtils.NetworkHelper.getLocalAddress();
+            if (address != null) {
+                serverSocket = TransferUtils.NetworkHelper.listen(address);
+            }
+
+            PreparedTransfer prepared = new PreparedTransfer(uri, fileName, fileSize, mimeType,
+                    session, fanOut, loaded, serverSocket);
+            // Either cancel() sees the result or this sees the cancellation
+            result = prepared;
+            if (cancelled) {
+                prepared.close();
+                throw new CancellationException();
+            }
+
+            Log.d(TAG, "Prepared " + fileName + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return prepared;
+        }
+
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.nfcthings;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format for direct socket transfers.
+ *
+ * A transfer is a {@link Header} followed by length-prefixed chunks, a
+ * zero-length end marker and a length-prefixed trailer holding the SHA-256 of
+ * the original file. The codec recorded in the header applies to the chunk
+ * payloads only. Encrypted transfers seal every chunk with the session
+ * {@link SessionCrypto.ChunkCipher}, and seal the trailer as the last chunk so
+ * truncation is detected.
+ */
+public final class TransferProtocol {
+
+    public static final int MAGIC = 0x4E464354; // "NFCT"
+    public static final int VERSION = 4;
+
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    public static final int FLAG_ENCRYPTED = 0x01;
+
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final int DIGEST_SIZE = 32;
+
+    /** Bytes read from the start of a file before a codec is chosen */
+    public static final int SAMPLE_SIZE = 2 * CHUNK_SIZE;
+
+    /** Largest chunk on the wire, including the authentication tag of encrypted chunks */
+    public static final int MAX_FRAME_SIZE = CHUNK_SIZE + SessionCrypto.TAG_SIZE;
+
+    /** Samples above this many bits per byte are treated as already compressed (JPEG, WebP) */
+    static final double ENTROPY_THRESHOLD = 7.5;
+
+    private TransferProtocol() {
+    }
+
+    /**
+     * Estimate the order-0 Shannon entropy of the given bytes, in bits per byte
+     */
+    public static double estimateEntropy(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+    /**
+     * Pick a codec for a file from a sample of its first chunks
+     */
+    public static byte chooseCodec(byte[] sample, int length) {
+        return estimateEntropy(sample, 0, length) < ENTROPY_THRESHOLD ? CODEC_DEFLATE : CODEC_NONE;
+    }
+
+    /**
+     * Header sent once at the start of every transfer
+     */
+    public static class Header {
+        public final String fileName;
+        public final long fileSize;
+        public final byte codec;
+        public final int flags;
+
+        public Header(String fileName, long fileSize, byte codec, int flags) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.codec = codec;
+            this.flags = flags;
+        }
+
+        public boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(codec);
+            out.writeByte(flags);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+        }
+
+        public static Header readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a transfer stream");
+            }
+
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported transfer version: " + version);
+            }
+
+            byte codec = in.readByte();
+            if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+                throw new IOException("Unsupported codec: " + codec);
+            }
+
+            int flags = in.readUnsignedByte();
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+            // Bounded so size arithmetic cannot overflow and a peer cannot ask for an absurd allocation
+            if (fileSize < 0 || fileSize > TransferUtils.ValidationHelper.LARGE_FILE_LIMIT) {
+                throw new IOException("Invalid file size: " + fileSize);
+            }
+            return new Header(fileName, fileSize, codec, flags);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.nfcthings;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives a file sent by {@link TransferSender}.
+ *
+ * Chunks are authenticated and decompressed on the calling thread straight
+ * into {@link ReceivePipeline} slots, which are written and hashed on their own
+ * threads. The file is written under a temporary name and only renamed into
+ * place once its digest matches the sender's trailer. Space for the whole file
+ * is checked and reserved before the first chunk is read.
+ */
+public class TransferReceiver {
+
+    static final String PARTIAL_SUFFIX = ".part";
+
+    // Headroom left on the volume after a transfer, for the filesystem and other apps
+    private static final long FREE_SPACE_MARGIN = 32L * 1024 * 1024;
+
+    private static final Object PUBLISH_LOCK = new Object();
+
+    private final byte[] frameBuffer = new byte[TransferProtocol.MAX_FRAME_SIZE];
+    private final byte[] chunkBuffer = new byte[TransferProtocol.CHUNK_SIZE];
+    private final SessionCrypto.ChunkCipher cipher;
+    private final ReceivePipeline.Allocator allocator;
+
+    public TransferReceiver() {
+        this(null);
+    }
+
+    /**
+     * @param cipher session cipher; when set, unencrypted transfers are rejected
+     */
+    public TransferReceiver(SessionCrypto.ChunkCipher cipher) {
+        this(cipher, ReceivePipeline.FALLOCATE);
+    }
+
+    /**
+     * @param allocator reserves each file's blocks before the first chunk
+     */
+    TransferReceiver(SessionCrypto.ChunkCipher cipher, ReceivePipeline.Allocator allocator) {
+        this.cipher = cipher;
+        this.allocator = allocator;
+    }
+
+    public File receive(InputStream source, File directory,
+                        TransferUtils.TransferStatusListener listener) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(source, TransferProtocol.MAX_FRAME_SIZE + 4));
+        TransferProtocol.Header header = TransferProtocol.Header.readFrom(in);
+        if (header.isEncrypted() != (cipher != null)) {
+            throw new IOException(cipher != null
+                    ? "Peer sent an unencrypted transfer" : "No session key for encrypted transfer");
+        }
+
+        // Never trust a path from the peer
+        String name = new File(header.fileName).getName();
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.endsWith(PARTIAL_SUFFIX)
+                || name.equals(InboxIndex.INDEX_FILE_NAME)) {
+            throw new IOException("Invalid file name: " + header.fileName);
+        }
+
+        long usableSpace = directory.getUsableSpace();
+        if (usableSpace < header.fileSize + FREE_SPACE_MARGIN) {
+            IOException e = new IOException("Not enough space for " + header.fileName + ": need "
+                    + header.fileSize + " bytes, " + usableSpace + " available");
+            if (listener != null) {
+                listener.onTransferError(e.getMessage());
+            }
+            throw e;
+        }
+
+        if (listener != null) {
+            listener.onTransferStarted();
+        }
+
+        Inflater inflater = header.codec == TransferProtocol.CODEC_DEFLATE ? new Inflater(true) : null;
+        File partFile = null;
+        ReceivePipeline pipeline = null;
+        File destFile;
+        try {
+            partFile = createPartFile(directory, name);
+            pipeline = new ReceivePipeline(partFile, header.fileSize, allocator);
+            long received = 0;
+            int length;
+            while ((length = in.readInt()) != 0) {
+                received += readChunk(in, length, inflater, pipeline);
+                if (received > header.fileSize) {
+                    throw new IOException("Received more than the announced " + header.fileSize + " bytes");
+                }
+
+                if (listener != null && header.fileSize > 0) {
+                    listener.onTransferProgress((int) Math.min(100, received * 100 / header.fileSize));
+                }
+            }
+
+            byte[] expectedDigest = readTrailer(in);
+            byte[] actualDigest = pipeline.finish();
+
+            if (received != header.fileSize) {
+                throw new IOException("Expected " + header.fileSize + " bytes but received " + received);
+            }
+            if (!MessageDigest.isEqual(expectedDigest, actualDigest)) {
+                throw new IOException("Digest mismatch for " + name);
+            }
+            destFile = publish(partFile, directory, name);
+        } catch (IOException e) {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            if (partFile != null) {
+                partFile.delete();
+            }
+            if (listener != null) {
+                listener.onTransferError(e.getMessage());
+            }
+            throw e;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        if (listener != null) {
+            listener.onTransferCompleted(true, destFile.getName());
+        }
+        return destFile;
+    }
+
+    /**
+     * Create an empty partial file for {@code name}, numbered if another
+     * receive of the same name is in progress
+     */
+    private static File createPartFile(File directory, String name) throws IOException {
+        for (int n = 0; ; n++) {
+            File partFile = new File(directory, (n == 0 ? name : name + "." + n) + PARTIAL_SUFFIX);
+            if (partFile.createNewFile()) {
+                return partFile;
+            }
+        }
+    }
+
+    /**
+     * Rename the finished file to {@code name}, or to "name (n).ext" if that is
+     * taken, so an earlier file is never replaced
+     */
+    private static File publish(File partFile, File directory, String name) throws IOException {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+
+        // Concurrent receives must not both pick the same free name
+        synchronized (PUBLISH_LOCK) {
+            File destFile = new File(directory, name);
+            for (int n = 1; destFile.exists(); n++) {
+                destFile = new File(directory, base + " (" + n + ")" + extension);
+            }
+            if (!partFile.renameTo(destFile)) {
+                throw new IOException("Cannot publish " + destFile);
+            }
+            return destFile;
+        }
+    }
+
+    /**
+     * Decode one chunk into pipeline slots, returning the number of file bytes it held
+     */
+    private int readChunk(DataInputStream in, int length, Inflater inflater, ReceivePipeline pipeline)
+            throws IOException {
+        if (length < 0 || length > frameBuffer.length ||
+                (cipher == null && length > TransferProtocol.CHUNK_SIZE)) {
+            throw new IOException("Invalid chunk length: " + length);
+        }
+
+        if (inflater == null) {
+            ReceivePipeline.Slot slot = pipeline.acquire();
+            if (cipher != null) {
+                in.readFully(frameBuffer, 0, length);
+                length = open(length, slot.data, false);
+            } else {
+                in.readFully(slot.data, 0, length);
+            }
+            pipeline.submit(slot, length);
+            return length;
+        }
+
+        if (cipher != null) {
+            in.readFully(frameBuffer, 0, length);
+            length = open(length, chunkBuffer, false);
+        } else {
+            in.readFully(chunkBuffer, 0, length);
+        }
+        return inflate(inflater, length, pipeline);
+    }
+
+    private byte[] readTrailer(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > frameBuffer.length) {
+            throw new IOException("Invalid trailer length: " + length);
+        }
+        in.readFully(frameBuffer, 0, length);
+
+        byte[] digest = new byte[TransferProtocol.DIGEST_SIZE];
+        int digestLength = length;
+        if (cipher != null) {
+            // Sealed as the last chunk, so a truncated stream fails here
+            digestLength = open(length, digest, true);
+        } else if (length == digest.length) {
+            System.arraycopy(frameBuffer, 0, digest, 0, length);
+        }
+
+        if (digestLength != digest.length) {
+            throw new IOException("Invalid trailer length: " + length);
+        }
+        return digest;
+    }
+
+    private int open(int length, byte[] output, boolean last) throws IOException {
+        try {
+            return cipher.open(frameBuffer, 0, length, output, last);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk failed authentication", e);
+        }
+    }
+
+    private int inflate(Inflater inflater, int length, ReceivePipeline pipeline) throws IOException {
+        inflater.setInput(chunkBuffer, 0, length);
+        int total = 0;
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                ReceivePipeline.Slot slot = pipeline.acquire();
+                int count = inflater.inflate(slot.data);
+                if (count > 0) {
+                    pipeline.submit(slot, count);
+                    total += count;
+                } else {
+                    pipeline.recycle(slot);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.nfcthings;
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a file over an open connection using the {@link TransferProtocol} format.
+ *
+ * The first chunks are sampled to decide between passthrough and Deflate, then the
+ * file is compressed, and sealed when a session cipher is set, chunk by chunk on
+ * the calling thread as it is sent. The file digest for the trailer is computed
+ * from the same buffers, so the file is read only once. A {@link TransferPreparer}
+ * plan can supply the codec and digest up front, in which case the header goes
+ * out before the first read.
+ */
+public class TransferSender {
+
+    /** Pass as the codec to choose one by sampling the file */
+    public static final byte CODEC_AUTO = -1;
+
+    private final byte[] buffer = new byte[TransferProtocol.SAMPLE_SIZE];
+    private final byte[] deflateBuffer = new byte[TransferProtocol.CHUNK_SIZE];
+    private final byte[] sealBuffer = new byte[TransferProtocol.MAX_FRAME_SIZE];
+    private final SessionCrypto.ChunkCipher cipher;
+
+    public TransferSender() {
+        this(null);
+    }
+
+    public TransferSender(SessionCrypto.ChunkCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    public void send(InputStream source, String fileName, long fileSize, OutputStream sink,
+                     TransferUtils.TransferStatusListener listener) throws IOException {
+        send(source, fileName, fileSize, CODEC_AUTO, null, sink, listener);
+    }
+
+    /**
+     * @param codec      codec chosen ahead of time, or {@link #CODEC_AUTO}
+     * @param fileDigest digest of the whole file computed ahead of time, or null to hash while sending
+     */
+    public void send(InputStream source, String fileName, long fileSize, byte codec, byte[] fileDigest,
+                     OutputStream sink, TransferUtils.TransferStatusListener listener) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(sink, TransferProtocol.MAX_FRAME_SIZE + 4));
+
+        MessageDigest digest = null;
+        if (fileDigest == null) {
+            try {
+                digest = MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        int flags = cipher != null ? TransferProtocol.FLAG_ENCRYPTED : 0;
+        int sampled;
+        if (codec == CODEC_AUTO) {
+            sampled = readFully(source, buffer, buffer.length);
+            codec = TransferProtocol.chooseCodec(buffer, sampled);
+            new TransferProtocol.Header(fileName, fileSize, codec, flags).writeTo(out);
+        } else {
+            // Nothing to decide, so the receiver can start setting up right away
+            new TransferProtocol.Header(fileName, fileSize, codec, flags).writeTo(out);
+            out.flush();
+            sampled = readFully(source, buffer, buffer.length);
+        }
+
+        if (listener != null) {
+            listener.onTransferStarted();
+        }
+
+        Deflater deflater = codec == TransferProtocol.CODEC_DEFLATE
+                ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        try {
+            long sent = 0;
+            int length = sampled;
+            while (length > 0) {
+                if (digest != null) {
+                    digest.update(buffer, 0, length);
+                }
+                for (int offset = 0; offset < length; offset += TransferProtocol.CHUNK_SIZE) {
+                    int count = Math.min(TransferProtocol.CHUNK_SIZE, length - offset);
+                    if (deflater != null) {
+                        deflater.setInput(buffer, offset, count);
+                        flush(deflater, out);
+                    } else {
+                        writeChunk(out, buffer, offset, count);
+                    }
+                }
+
+                sent += length;
+                if (listener != null && fileSize > 0) {
+                    listener.onTransferProgress((int) Math.min(100, sent * 100 / fileSize));
+                }
+                length = readFully(source, buffer, buffer.length);
+            }
+
+            if (deflater != null) {
+                finish(deflater, out);
+            }
+            out.writeInt(0);
+            writeTrailer(out, digest != null ? digest.digest() : fileDigest);
+            out.flush();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        if (listener != null) {
+            listener.onTransferCompleted(true, fileName);
+        }
+    }
+
+    private void flush(Deflater deflater, DataOutputStream out) throws IOException {
+        // A full output buffer means more compressed data is pending
+        int count;
+        do {
+            count = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+            if (count > 0) {
+                writeChunk(out, deflateBuffer, 0, count);
+            }
+        } while (count == deflateBuffer.length);
+    }
+
+    private void finish(Deflater deflater, DataOutputStream out) throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(deflateBuffer);
+            if (count > 0) {
+                writeChunk(out, deflateBuffer, 0, count);
+            }
+        }
+    }
+
+    private void writeChunk(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+        if (cipher != null) {
+            writeSealed(out, data, offset, length, false);
+        } else {
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+    }
+
+    private void writeTrailer(DataOutputStream out, byte[] fileDigest) throws IOException {
+        if (cipher != null) {
+            writeSealed(out, fileDigest, 0, fileDigest.length, true);
+        } else {
+            out.writeInt(fileDigest.length);
+            out.write(fileDigest);
+        }
+    }
+
+    private void writeSealed(DataOutputStream out, byte[] data, int offset, int length, boolean last)
+            throws IOException {
+        try {
+            int sealed = cipher.seal(data, offset, length, sealBuffer, last);
+            out.writeInt(sealed);
+            out.write(sealBuffer, 0, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt chunk", e);
+        }
+    }
+
+    /**
+     * Read until the buffer holds {@code length} bytes or the stream ends
+     */
+    static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -7,20 +7,37 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.nfc.NfcAdapter;
 import android.os.Environment;
+import android.provider.OpenableColumns;
+import android.webkit.MimeTypeMap;
 import android.util.Log;
 
 import androidx.core.content.FileProvider;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.Locale;
 import java.util.Set;
 
@@ -63,6 +80,39 @@ public class TransferUtils {
             }
             return null;
         }
+
+        /**
+         * Create the handshake payload served over the HCE APDU exchange: file
+         * name, the sender's address and port on the local network, and session key
+         */
+        public static byte[] createHandshakePayload(String fileName, String host, int port, SessionCrypto session) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(fileName);
+                out.writeUTF(host);
+                out.writeShort(port);
+                session.writeHandshake(out);
+            } catch (IOException e) {
+                // Writing to memory cannot fail
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Parse a handshake payload, returning null if it is malformed
+         */
+        public static HandshakeData parseHandshakePayload(byte[] payload) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                String fileName = in.readUTF();
+                String host = in.readUTF();
+                int port = in.readUnsignedShort();
+                return new HandshakeData(fileName, host, port, SessionCrypto.readHandshake(in));
+            } catch (IOException e) {
+                Log.w(TAG, "Malformed handshake payload", e);
+                return null;
+            }
+        }
     }
 
     public static class BluetoothHelper {
@@ -117,6 +167,89 @@ public class TransferUtils {
         }
     }
 
+    public static class NetworkHelper {
+        private static final int CONNECT_TIMEOUT_MS = 5000;
+        // A peer that sends nothing for this long is dropped, so a stalled or
+        // hostile connection cannot hold a transfer thread forever
+        private static final int READ_TIMEOUT_MS = 30_000;
+        private static final int BACKLOG = 8;
+        // Wi-Fi station, hotspot and Wi-Fi Direct interfaces; cellular ones are never shared with the peer
+        private static final String[] LOCAL_INTERFACE_PREFIXES = {"wlan", "swlan", "ap", "p2p"};
+
+        /**
+         * Get this device's IPv4 address on Wi-Fi, a hotspot or Wi-Fi Direct,
+         * or null if it is on none of them
+         */
+        public static InetAddress getLocalAddress() {
+            try {
+                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                if (interfaces == null) {
+                    return null;
+                }
+                for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+                    if (!networkInterface.isUp() || networkInterface.isLoopback()
+                            || !isLocalInterface(networkInterface.getName())) {
+                        continue;
+                    }
+                    for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                        if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                            return address;
+                        }
+                    }
+                }
+            } catch (SocketException e) {
+                Log.w(TAG, "Cannot list network interfaces", e);
+            }
+            return null;
+        }
+
+        /**
+         * Listen for the direct transfer socket on an ephemeral port of {@code address}.
+         * The session key exchanged over NFC authenticates the peer.
+         */
+        public static ServerSocket listen(InetAddress address) throws IOException {
+            return new ServerSocket(0, BACKLOG, address);
+        }
+
+        /**
+         * Wait for the next receiver to connect to a direct transfer socket
+         */
+        public static Socket accept(ServerSocket serverSocket) throws IOException {
+            Socket socket = serverSocket.accept();
+            try {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+
+        /**
+         * Connect to a sender's direct transfer socket
+         */
+        public static Socket connect(String host, int port) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+
+        private static boolean isLocalInterface(String name) {
+            for (String prefix : LOCAL_INTERFACE_PREFIXES) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     public static class FileHelper {
         /**
          * Create a unique filename for image transfer
@@ -137,6 +270,17 @@ public class TransferUtils {
             return transferDir;
         }
 
+        /**
+         * Create directory for camera captures, kept apart from received files
+         */
+        public static File createCaptureDirectory(Context context) {
+            File captureDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "Captures");
+            if (!captureDir.exists()) {
+                captureDir.mkdirs();
+            }
+            return captureDir;
+        }
+
         /**
          * Create directory for sharing images
          */
@@ -196,6 +340,16 @@ public class TransferUtils {
          * Get file size in bytes
          */
         public static long getFileSize(Context context, Uri uri) {
+            // Ask the provider first so the file is not read just to measure it
+            try (Cursor cursor = context.getContentResolver().query(uri,
+                    new String[]{OpenableColumns.SIZE}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getLong(0);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Provider did not report a size for " + uri, e);
+            }
+
             try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
                 if (inputStream != null) {
                     long size = 0;
@@ -212,6 +366,73 @@ public class TransferUtils {
             return 0;
         }
 
+        /**
+         * Get the name the provider shows for a URI, or null if it has none
+         */
+        public static String getDisplayName(Context context, Uri uri) {
+            try (Cursor cursor = context.getContentResolver().query(uri,
+                    new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Provider did not report a name for " + uri, e);
+            }
+            return null;
+        }
+
+        /**
+         * Get the MIME type of a URI, falling back to its file extension
+         */
+        public static String getMimeType(Context context, Uri uri) {
+            String mimeType = context.getContentResolver().getType(uri);
+            if (mimeType == null) {
+                String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
+                mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.ROOT));
+            }
+            return mimeType != null ? mimeType : "application/octet-stream";
+        }
+
+        /**
+         * Get the MIME type of a local file from its extension, or null if unknown
+         */
+        public static String getMimeType(File file) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                return null;
+            }
+            return MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Open a URI for sending. File-backed URIs are read through memory-mapped
+         * windows so large files do not grow the heap; other providers are streamed.
+         */
+        public static InputStream openSourceStream(Context context, Uri uri) throws IOException {
+            ParcelFileDescriptor descriptor = null;
+            try {
+                descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "No file descriptor for " + uri + ", streaming instead", e);
+            }
+
+            if (descriptor != null && descriptor.getStatSize() >= 0) {
+                // The stream owns the descriptor and closes it with the channel
+                FileInputStream fileStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+                return new MappedFileInputStream(fileStream.getChannel());
+            }
+            if (descriptor != null) {
+                descriptor.close();
+            }
+
+            InputStream inputStream = context.getContentResolver().openInputStream(uri);
+            if (inputStream == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            return inputStream;
+        }
+
         /**
          * Get formatted file size string
          */
@@ -220,8 +441,10 @@ public class TransferUtils {
                 return bytes + " B";
             } else if (bytes < 1024 * 1024) {
                 return String.format(Locale.getDefault(), "%.1f KB", bytes / 1024.0);
-            } else {
+            } else if (bytes < 1024L * 1024 * 1024) {
                 return String.format(Locale.getDefault(), "%.1f MB", bytes / (1024.0 * 1024.0));
+            } else {
+                return String.format(Locale.getDefault(), "%.1f GB", bytes / (1024.0 * 1024.0 * 1024.0));
             }
         }
 
@@ -242,26 +465,41 @@ public class TransferUtils {
 
             long cutoffTime = System.currentTimeMillis() - (7 * 24 * 60 * 60 * 1000); // 7 days
 
-            cleanupDirectory(transferDir, cutoffTime);
+            if (cleanupDirectory(transferDir, cutoffTime)) {
+                // The inbox rebuilds its index from what is left
+                new InboxIndex(transferDir).invalidate();
+            }
             cleanupDirectory(shareDir, cutoffTime);
+            cleanupDirectory(createCaptureDirectory(context), cutoffTime);
         }
 
-        private static void cleanupDirectory(File directory, long cutoffTime) {
+        /**
+         * @return whether any file was deleted
+         */
+        private static boolean cleanupDirectory(File directory, long cutoffTime) {
+            boolean anyDeleted = false;
             if (directory.exists() && directory.isDirectory()) {
                 File[] files = directory.listFiles();
                 if (files != null) {
                     for (File file : files) {
                         if (file.lastModified() < cutoffTime) {
                             boolean deleted = file.delete();
+                            anyDeleted |= deleted;
                             Log.d(TAG, "Cleaned up old file: " + file.getName() + " (deleted: " + deleted + ")");
                         }
                     }
                 }
             }
+            return anyDeleted;
         }
     }
 
     public static class ValidationHelper {
+        /**
+         * Size limit in large-file mode (4GB)
+         */
+        public static final long LARGE_FILE_LIMIT = 4L * 1024 * 1024 * 1024;
+
         /**
          * Check if the image file is valid
          */
@@ -276,6 +514,13 @@ public class TransferUtils {
                     fileName.endsWith(".bmp") || fileName.endsWith(".webp");
         }
 
+        /**
+         * Check if a MIME type can be sent. Large-file mode accepts any type.
+         */
+        public static boolean isSupportedMimeType(String mimeType, boolean largeFileMode) {
+            return largeFileMode || (mimeType != null && mimeType.startsWith("image/"));
+        }
+
         /**
          * Check if the image URI is valid
          */
@@ -293,6 +538,16 @@ public class TransferUtils {
         public static boolean isFileSizeValid(long sizeInBytes) {
             return sizeInBytes > 0 && sizeInBytes <= 10 * 1024 * 1024; // 10MB limit
         }
+
+        /**
+         * Check the size limit for the current mode (10MB, or 4GB in large-file mode)
+         */
+        public static boolean isFileSizeValid(long sizeInBytes, boolean largeFileMode) {
+            if (!largeFileMode) {
+                return isFileSizeValid(sizeInBytes);
+            }
+            return sizeInBytes > 0 && sizeInBytes <= LARGE_FILE_LIMIT;
+        }
     }
 
     /**
@@ -308,6 +563,23 @@ public class TransferUtils {
         }
     }
 
+    /**
+     * Data class for the session handshake received over NFC
+     */
+    public static class HandshakeData {
+        public final String fileName;
+        public final String host;
+        public final int port;
+        public final SessionCrypto.PeerKey peerKey;
+
+        public HandshakeData(String fileName, String host, int port, SessionCrypto.PeerKey peerKey) {
+            this.fileName = fileName;
+            this.host = host;
+            this.port = port;
+            this.peerKey = peerKey;
+        }
+    }
+
     /**
      * Interface for transfer status callbacks
      */
@@ -0,0 +1,243 @@
+package com.example.nfcthings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.nfcthings.TransferTestUtils.newReceiver;
+import static com.example.nfcthings.TransferTestUtils.randomBytes;
+import static com.example.nfcthings.TransferTestUtils.readFile;
+import static org.junit.Assert.*;
+
+/**
+ * Fan-out with simulated receivers over in-memory streams.
+ */
+public class FanOutSessionTest {
+
+    private static final int RECEIVERS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void everyReceiverGetsTheFile_sourceReadOnce() throws Exception {
+        byte[] data = randomBytes(1024 * 1024, 42);
+        CountingInputStream source = new CountingInputStream(new ByteArrayInputStream(data));
+        FanOutSession session = new FanOutSession("photo.jpg", data.length);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<ByteArrayOutputStream> sinks = new ArrayList<>();
+        List<Future<?>> sends = new ArrayList<>();
+        for (int i = 0; i < RECEIVERS; i++) {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            sinks.add(sink);
+            sends.add(executor.submit(() -> {
+                session.send(sink, null, null);
+                return null;
+            }));
+        }
+        session.load(source);
+
+        for (Future<?> send : sends) {
+            send.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(data.length, source.count.get());
+        for (ByteArrayOutputStream sink : sinks) {
+            assertArrayEquals(data, receive(sink.toByteArray()));
+        }
+    }
+
+    @Test
+    public void slowReceiverDoesNotStallFastOnes() throws Exception {
+        byte[] data = randomBytes(512 * 1024, 42);
+        FanOutSession session = new FanOutSession("photo.jpg", data.length);
+        CountDownLatch fastDone = new CountDownLatch(RECEIVERS - 1);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Future<?> slow = executor.submit(() -> {
+            session.send(blockingSink(fastDone), null, null);
+            return null;
+        });
+
+        for (int i = 0; i < RECEIVERS - 1; i++) {
+            executor.submit(() -> {
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                session.send(sink, null, null);
+                fastDone.countDown();
+                return null;
+            });
+        }
+        session.load(new ByteArrayInputStream(data));
+
+        assertTrue("Fast receivers were stalled", fastDone.await(10, TimeUnit.SECONDS));
+        slow.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+    }
+
+    @Test
+    public void receiverJoiningAfterLoadStartsFromFirstByte() throws Exception {
+        byte[] data = randomBytes(200 * 1024, 42);
+        FanOutSession session = new FanOutSession("photo.png", data.length);
+        session.load(new ByteArrayInputStream(data));
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        session.send(sink, null, null);
+
+        assertArrayEquals(data, receive(sink.toByteArray()));
+    }
+
+    @Test(timeout = 30000)
+    public void fileLargerThanRingIsPacedByFastestReceiver() throws Exception {
+        byte[] data = randomBytes(1024 * 1024, 42);
+        FanOutSession session = new FanOutSession("video.mp4", data.length, 64 * 1024);
+        // With a plan the header is flushed before the first read, so the slow
+        // receiver blocks at position 0 instead of sampling ahead of the fast one
+        session.setPlan(TransferProtocol.CODEC_NONE,
+                MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM).digest(data));
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ByteArrayOutputStream fastSink = new ByteArrayOutputStream();
+            Future<?> fast = executor.submit(() -> {
+                try {
+                    session.send(fastSink, null, null);
+                } finally {
+                    fastDone.countDown();
+                }
+                return null;
+            });
+            Future<?> slow = executor.submit(() -> {
+                session.send(blockingSink(fastDone), null, null);
+                return null;
+            });
+
+            // Loading before both have joined would lap the late one at the start
+            while (session.getReaderCount() < 2) {
+                Thread.sleep(1);
+            }
+            session.load(new ByteArrayInputStream(data));
+
+            fast.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(data, receive(fastSink.toByteArray()));
+            try {
+                slow.get(10, TimeUnit.SECONDS);
+                fail("Lapped receiver should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interruptedLoadStopsWithinAChunk() throws Exception {
+        FanOutSession session = new FanOutSession("video.mp4", 1L << 30, 1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (reads.incrementAndGet() == 3) {
+                    // As future.cancel(true) does to a preparation
+                    Thread.currentThread().interrupt();
+                }
+                return len;
+            }
+        };
+
+        try {
+            session.load(endless);
+            fail("Interrupted load should fail");
+        } catch (InterruptedIOException e) {
+            // Expected
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(3, reads.get());
+
+        try {
+            session.send(new ByteArrayOutputStream(), null, null);
+            fail("Aborted session should fail receivers");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Sink that blocks on its first write until {@code release} opens
+     */
+    private static OutputStream blockingSink(CountDownLatch release) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    private byte[] receive(byte[] wire) throws IOException {
+        return readFile(newReceiver(null).receive(new ByteArrayInputStream(wire), folder.newFolder(), null));
+    }
+
+    private static class CountingInputStream extends InputStream {
+        final AtomicLong count = new AtomicLong();
+        private final InputStream in;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count.addAndGet(read);
+            }
+            return read;
+        }
+    }
+}
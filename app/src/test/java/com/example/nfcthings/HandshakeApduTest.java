@@ -0,0 +1,105 @@
+package com.example.nfcthings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * APDU handshake between the card state machine and the reader, without NFC hardware.
+ */
+public class HandshakeApduTest {
+
+    private HandshakeApdu.Card card;
+    private List<byte[]> commands;
+
+    @Before
+    public void setUp() {
+        card = new HandshakeApdu.Card();
+        commands = new ArrayList<>();
+    }
+
+    @Test
+    public void shortPayloadIsReadInOneRoundTrip() throws IOException {
+        byte[] payload = payload(120);
+        card.setPayload(payload);
+
+        assertArrayEquals(payload, HandshakeApdu.read(this::transceive));
+        assertEquals(1, commands.size());
+    }
+
+    @Test
+    public void longPayloadIsChainedWithGetResponse() throws IOException {
+        byte[] payload = payload(HandshakeApdu.SEGMENT_SIZE * 2 + 17);
+        card.setPayload(payload);
+
+        assertArrayEquals(payload, HandshakeApdu.read(this::transceive));
+        assertEquals(3, commands.size());
+    }
+
+    @Test
+    public void payloadCanBeReadAgainOnNextTap() throws IOException {
+        byte[] payload = payload(600);
+        card.setPayload(payload);
+
+        assertArrayEquals(payload, HandshakeApdu.read(this::transceive));
+        card.reset();
+        assertArrayEquals(payload, HandshakeApdu.read(this::transceive));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFailsWhenNothingIsShared() throws IOException {
+        HandshakeApdu.read(this::transceive);
+    }
+
+    @Test
+    public void tagWithoutOurAidReadsAsNoHandshake() throws IOException {
+        // A Type 4 NDEF tag answers a SELECT of an unknown AID with 6A82
+        assertNull(HandshakeApdu.read(command -> HandshakeApdu.SW_FILE_NOT_FOUND.clone()));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherSelectRejectionStillFails() throws IOException {
+        HandshakeApdu.read(command -> HandshakeApdu.SW_INS_NOT_SUPPORTED.clone());
+    }
+
+    @Test
+    public void otherAidIsNotSelected() {
+        card.setPayload(payload(10));
+        byte[] select = HandshakeApdu.selectCommand();
+        select[select.length - 2] ^= 0x01;
+
+        assertArrayEquals(HandshakeApdu.SW_FILE_NOT_FOUND, card.process(select));
+    }
+
+    @Test
+    public void getResponseBeforeSelectIsRejected() {
+        card.setPayload(payload(10));
+
+        assertArrayEquals(HandshakeApdu.SW_CONDITIONS_NOT_SATISFIED,
+                card.process(HandshakeApdu.getResponseCommand(0)));
+    }
+
+    @Test
+    public void unknownInstructionIsRejected() {
+        assertArrayEquals(HandshakeApdu.SW_INS_NOT_SUPPORTED, card.process(new byte[]{0x00, (byte) 0xB0, 0x00, 0x00}));
+        assertArrayEquals(HandshakeApdu.SW_WRONG_LENGTH, card.process(new byte[]{0x00}));
+    }
+
+    private byte[] transceive(byte[] command) {
+        commands.add(command);
+        return card.process(command);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.nfcthings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Paging, appends and rebuilds of the inbox index.
+ */
+public class InboxIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private InboxIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        index = new InboxIndex(directory);
+    }
+
+    @Test
+    public void pagesAreNewestFirstAtEveryOffset() throws IOException {
+        receive(10);
+        int count = index.size();
+
+        assertEquals(10, count);
+        assertEquals(Arrays.asList("f9", "f8", "f7", "f6"), names(index.readPage(count, 0, 4)));
+        assertEquals(Arrays.asList("f5", "f4", "f3", "f2"), names(index.readPage(count, 4, 4)));
+        assertEquals(Arrays.asList("f1", "f0"), names(index.readPage(count, 8, 4)));
+        assertTrue(index.readPage(count, 10, 4).isEmpty());
+    }
+
+    @Test
+    public void appendsWhilePagingDoNotShiftPages() throws IOException {
+        receive(5);
+        int count = index.size();
+        List<String> firstPage = names(index.readPage(count, 0, 3));
+
+        for (int i = 5; i < 8; i++) {
+            index.append(createFile("f" + i, i));
+        }
+
+        assertEquals(Arrays.asList("f4", "f3", "f2"), firstPage);
+        assertEquals(Arrays.asList("f1", "f0"), names(index.readPage(count, 3, 3)));
+        assertEquals(8, index.size());
+        assertEquals(Arrays.asList("f7", "f6", "f5"), names(index.readPage(index.size(), 0, 3)));
+    }
+
+    @Test
+    public void entriesKeepSizeAndTime() throws IOException {
+        File file = createFile("photo.jpg", 1);
+        file.setLastModified(1_600_000_000_000L);
+
+        index.append(file);
+        InboxIndex.Entry entry = index.readPage(1, 0, 1).get(0);
+
+        assertEquals("photo.jpg", entry.name);
+        assertEquals(file.length(), entry.size);
+        assertEquals(file.lastModified(), entry.receivedAt);
+    }
+
+    @Test
+    public void rebuildIndexesFinishedFilesByAge() throws IOException {
+        createFile("newer.jpg", 1).setLastModified(2_000_000_000_000L);
+        createFile("older.jpg", 2).setLastModified(1_000_000_000_000L);
+        createFile("incoming.jpg" + TransferReceiver.PARTIAL_SUFFIX, 3);
+
+        assertTrue(index.rebuildIfMissing());
+        assertFalse(index.rebuildIfMissing());
+
+        assertEquals(Arrays.asList("newer.jpg", "older.jpg"), names(index.readPage(index.size(), 0, 10)));
+    }
+
+    @Test
+    public void invalidatedIndexIsRebuiltFromWhatIsLeft() throws IOException {
+        receive(3);
+        assertTrue(new File(directory, "f1").delete());
+
+        index.invalidate();
+        assertEquals(0, index.size());
+        assertTrue(index.rebuildIfMissing());
+
+        assertEquals(Arrays.asList("f2", "f0"), names(index.readPage(index.size(), 0, 10)));
+    }
+
+    @Test
+    public void firstAppendIndexesOlderFilesToo() throws IOException {
+        // Received before the index existed
+        createFile("old.jpg", 1).setLastModified(1_000_000_000_000L);
+
+        index.append(createFile("new.jpg", 2));
+
+        assertEquals(Arrays.asList("new.jpg", "old.jpg"), names(index.readPage(index.size(), 0, 10)));
+    }
+
+    @Test
+    public void appendAfterRacingRebuildIsNotDuplicated() throws IOException {
+        receive(2);
+        index.invalidate();
+        File file = createFile("photo.jpg", 3);
+
+        // The inbox rebuilt after the file landed but before the receiver indexed it
+        assertTrue(index.rebuildIfMissing());
+        index.append(file);
+
+        assertEquals(3, index.size());
+    }
+
+    /**
+     * Receive and index files f0 to f(count - 1), oldest first
+     */
+    private void receive(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            index.append(createFile("f" + i, i));
+        }
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        File file = new File(directory, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+
+    private static List<String> names(List<InboxIndex.Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (InboxIndex.Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.nfcthings;
+
+import android.content.Intent;
+import android.nfc.NfcAdapter;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Cold-start ordering and main-thread cost of {@link MainActivity}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33, application = MainActivityStartupTest.TestApplication.class)
+public class MainActivityStartupTest {
+
+    // Generous for a JVM host, but far below a serial adapter and permission setup on a device
+    private static final long MAIN_THREAD_BUDGET_MS = 150;
+
+    private ManualExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new ManualExecutor();
+        ((TestApplication) RuntimeEnvironment.getApplication()).executor = executor;
+    }
+
+    @Test
+    public void nfcIntentIsHandledBeforeAdapterAndPermissionSetup() throws InterruptedException {
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class, nfcIntent());
+        MainActivity activity = controller.create().get();
+
+        // Only the fast path has run by the end of onCreate; the adapter lookup is still queued
+        assertEquals(Arrays.asList(MainActivity.PHASE_CONTENT_VIEW, MainActivity.PHASE_VIEWS, MainActivity.PHASE_NFC_INTENT),
+                phaseNames(activity.getStartupTrace()));
+
+        controller.start().resume().visible();
+        List<StartupTrace.Phase> phases = awaitStartup(activity.getStartupTrace());
+        List<String> names = phaseNames(activity.getStartupTrace());
+
+        int nfcIntent = names.indexOf(MainActivity.PHASE_NFC_INTENT);
+        assertTrue(nfcIntent < names.indexOf(MainActivity.PHASE_ADAPTERS));
+        assertTrue(names.indexOf(MainActivity.PHASE_ADAPTERS) < names.indexOf(MainActivity.PHASE_ADAPTER_SETUP));
+        assertTrue(nfcIntent < names.indexOf(MainActivity.PHASE_PERMISSIONS));
+        assertFalse("Adapter lookup ran on the main thread",
+                phases.get(names.indexOf(MainActivity.PHASE_ADAPTERS)).mainThread);
+
+        controller.pause().stop().destroy();
+    }
+
+    @Test
+    public void onCreateStaysWithinMainThreadBudget() {
+        // The first activity pays for loading resources; measure a warm second launch
+        Robolectric.buildActivity(MainActivity.class, nfcIntent()).create().destroy();
+        // That activity shut its executor down
+        setUp();
+
+        MainActivity activity = Robolectric.buildActivity(MainActivity.class, nfcIntent()).create().get();
+        long mainThreadMs = TimeUnit.NANOSECONDS.toMillis(activity.getStartupTrace().getMainThreadNanos());
+
+        assertTrue("onCreate took " + mainThreadMs + " ms on the main thread", mainThreadMs < MAIN_THREAD_BUDGET_MS);
+    }
+
+    @Test
+    public void traceIsWrittenToLocalLog() throws InterruptedException {
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class, nfcIntent());
+        MainActivity activity = controller.setup().get();
+        awaitStartup(activity.getStartupTrace());
+        // The write is queued once both deferred steps are done
+        executor.runQueued();
+
+        File log = new File(activity.getFilesDir(), StartupTrace.LOG_FILE_NAME);
+        assertTrue("Startup log was not written", log.length() > 0);
+
+        controller.pause().stop().destroy();
+    }
+
+    private static Intent nfcIntent() {
+        return new Intent(RuntimeEnvironment.getApplication(), MainActivity.class)
+                .setAction(NfcAdapter.ACTION_NDEF_DISCOVERED);
+    }
+
+    /**
+     * Run the background lookup, then the main looper, until the deferred startup phases have been recorded
+     */
+    private List<StartupTrace.Phase> awaitStartup(StartupTrace trace) throws InterruptedException {
+        executor.runQueued();
+        shadowOf(Looper.getMainLooper()).idle();
+
+        List<String> names = phaseNames(trace);
+        assertTrue("Deferred startup did not finish: " + names,
+                names.contains(MainActivity.PHASE_ADAPTER_SETUP) && names.contains(MainActivity.PHASE_PERMISSIONS));
+        return trace.getPhases();
+    }
+
+    private static List<String> phaseNames(StartupTrace trace) {
+        List<String> names = new ArrayList<>();
+        for (StartupTrace.Phase phase : trace.getPhases()) {
+            names.add(phase.name);
+        }
+        return names;
+    }
+
+    /**
+     * Hands activities the test's executor, so background work runs only when the test says
+     */
+    public static class TestApplication extends NfcThingsApplication {
+        ManualExecutor executor;
+
+        @Override
+        ExecutorService newTransferExecutor() {
+            return executor;
+        }
+    }
+
+    /**
+     * Queues tasks until the test runs them, each batch on a fresh worker thread like the real pool
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+        private final List<Runnable> queue = new ArrayList<>();
+        private boolean shutdown;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException();
+            }
+            queue.add(task);
+        }
+
+        /**
+         * Run every queued task, including ones queued meanwhile, off the main thread
+         */
+        void runQueued() throws InterruptedException {
+            while (true) {
+                List<Runnable> tasks;
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    tasks = new ArrayList<>(queue);
+                    queue.clear();
+                }
+
+                Thread worker = new Thread(() -> {
+                    for (Runnable task : tasks) {
+                        task.run();
+                    }
+                }, "test-executor");
+                worker.start();
+                worker.join();
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown = true;
+            List<Runnable> pending = new ArrayList<>(queue);
+            queue.clear();
+            return pending;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.nfcthings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.nfcthings.TransferTestUtils.randomBytes;
+import static com.example.nfcthings.TransferTestUtils.readFile;
+import static org.junit.Assert.*;
+
+/**
+ * Preallocation and the write and hash stages of the receive pipeline.
+ */
+public class ReceivePipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void wholeFileIsAllocatedBeforeTheFirstChunk() throws Exception {
+        byte[] data = randomBytes(100 * 1024, 1);
+        List<Long> allocations = new ArrayList<>();
+        File file = folder.newFile();
+
+        ReceivePipeline pipeline = new ReceivePipeline(file, data.length, (fd, size) -> {
+            assertTrue(fd.valid());
+            allocations.add(size);
+            return true;
+        });
+
+        assertEquals(1, allocations.size());
+        assertEquals(data.length, (long) allocations.get(0));
+        assertArrayEquals(sha256(data), write(pipeline, data));
+        assertArrayEquals(data, readFile(file));
+    }
+
+    @Test
+    public void fileIsExtendedSparselyWhenAllocationIsUnsupported() throws Exception {
+        byte[] data = randomBytes(100 * 1024, 2);
+        File file = folder.newFile();
+
+        ReceivePipeline pipeline = new ReceivePipeline(file, data.length, TransferTestUtils.SPARSE_ALLOCATOR);
+
+        assertEquals(data.length, file.length());
+        assertArrayEquals(sha256(data), write(pipeline, data));
+        assertArrayEquals(data, readFile(file));
+    }
+
+    @Test
+    public void fullVolumeFailsBeforeTheFirstChunk() throws Exception {
+        File file = folder.newFile();
+
+        try {
+            new ReceivePipeline(file, 100 * 1024, (fd, size) -> {
+                throw new IOException("Not enough space for " + size + " bytes");
+            });
+            fail("Pipeline started without space for the file");
+        } catch (IOException e) {
+            assertEquals("Not enough space for " + 100 * 1024 + " bytes", e.getMessage());
+        }
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void emptyFileIsNotAllocated() throws Exception {
+        File file = folder.newFile();
+
+        ReceivePipeline pipeline = new ReceivePipeline(file, 0, (fd, size) -> {
+            throw new AssertionError("Allocated an empty file");
+        });
+
+        assertArrayEquals(sha256(new byte[0]), pipeline.finish());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void shortDeliveryDropsTheReservedTail() throws Exception {
+        byte[] data = randomBytes(10 * 1024, 3);
+        File file = folder.newFile();
+
+        ReceivePipeline pipeline = new ReceivePipeline(file, 2 * data.length, TransferTestUtils.SPARSE_ALLOCATOR);
+        write(pipeline, data);
+
+        assertEquals(data.length, file.length());
+    }
+
+    /**
+     * Submit {@code data} in chunk-sized slots and finish
+     */
+    private static byte[] write(ReceivePipeline pipeline, byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += TransferProtocol.CHUNK_SIZE) {
+            int length = Math.min(TransferProtocol.CHUNK_SIZE, data.length - offset);
+            ReceivePipeline.Slot slot = pipeline.acquire();
+            System.arraycopy(data, offset, slot.data, 0, length);
+            pipeline.submit(slot, length);
+        }
+        return pipeline.finish();
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance(TransferProtocol.DIGEST_ALGORITHM).digest(data);
+    }
+}
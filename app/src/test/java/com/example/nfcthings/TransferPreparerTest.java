@@ -0,0 +1,176 @@
+package com.example.nfcthings;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.nfcthings.TransferTestUtils.newReceiver;
+import static com.example.nfcthings.TransferTestUtils.randomBytes;
+import static com.example.nfcthings.TransferTestUtils.readFile;
+import static org.junit.Assert.*;
+
+/**
+ * Speculative preparation of a selected file.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class TransferPreparerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // One thread, so a no-op task marks the end of everything submitted before it
+    private ExecutorService executor;
+    private TransferPreparer preparer;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        preparer = new TransferPreparer(RuntimeEnvironment.getApplication(), executor);
+    }
+
+    @After
+    public void tearDown() {
+        preparer.cancel();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void preparedSendHoldsTheWholeFile() throws Exception {
+        byte[] data = randomBytes(200 * 1024, 42);
+        Uri uri = Uri.fromFile(writeFile("photo.jpg", data));
+
+        preparer.prepare(uri, "photo.jpg");
+        awaitPreparation();
+        TransferPreparer.PreparedTransfer prepared = preparer.take(uri);
+
+        try {
+            assertNotNull(prepared);
+            assertEquals(data.length, prepared.fileSize);
+            assertTrue(prepared.loaded);
+            assertNotNull(prepared.session);
+
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            prepared.fanOut.send(wire, null, null);
+            File received = newReceiver(null).receive(new ByteArrayInputStream(wire.toByteArray()),
+                    folder.newFolder(), null);
+            assertArrayEquals(data, readFile(received));
+        } finally {
+            if (prepared != null) {
+                prepared.close();
+            }
+        }
+    }
+
+    @Test
+    public void preparationIsOnlyTakenForItsFile() throws Exception {
+        Uri first = Uri.fromFile(writeFile("first.jpg", randomBytes(1024, 42)));
+        Uri second = Uri.fromFile(writeFile("second.jpg", randomBytes(1024, 42)));
+
+        preparer.prepare(first, "first.jpg");
+        awaitPreparation();
+
+        assertNull(preparer.take(second));
+        // The mismatch released it
+        assertNull(preparer.take(first));
+    }
+
+    @Test
+    public void newSelectionReplacesEarlierPreparation() throws Exception {
+        Uri first = Uri.fromFile(writeFile("first.jpg", randomBytes(1024, 42)));
+        Uri second = Uri.fromFile(writeFile("second.jpg", randomBytes(2048, 42)));
+
+        preparer.prepare(first, "first.jpg");
+        preparer.prepare(second, "second.jpg");
+        awaitPreparation();
+
+        TransferPreparer.PreparedTransfer prepared = preparer.take(second);
+        assertNotNull(prepared);
+        assertEquals(2048, prepared.fileSize);
+        prepared.close();
+    }
+
+    @Test
+    public void unfinishedPreparationIsHandedOver() throws Exception {
+        CountDownLatch release = blockExecutor();
+        Uri uri = Uri.fromFile(writeFile("photo.jpg", randomBytes(1024, 42)));
+        preparer.prepare(uri, "photo.jpg");
+
+        Future<TransferPreparer.PreparedTransfer> taken = Executors.newSingleThreadExecutor().submit(
+                () -> preparer.take(uri));
+        release.countDown();
+        TransferPreparer.PreparedTransfer prepared = taken.get(10, TimeUnit.SECONDS);
+
+        assertNotNull("Running preparation was thrown away", prepared);
+        assertEquals(1024, prepared.fileSize);
+        prepared.close();
+        // Only one caller owns it
+        assertNull(preparer.take(uri));
+    }
+
+    @Test
+    public void interruptedTakeCancelsThePreparation() throws Exception {
+        CountDownLatch release = blockExecutor();
+        Uri uri = Uri.fromFile(writeFile("photo.jpg", randomBytes(1024, 42)));
+        preparer.prepare(uri, "photo.jpg");
+
+        Thread.currentThread().interrupt();
+        try {
+            preparer.take(uri);
+            fail("Take did not stop on interrupt");
+        } catch (InterruptedException e) {
+            // Expected
+        }
+
+        release.countDown();
+        awaitPreparation();
+        assertNull("Cancelled preparation was kept", preparer.take(uri));
+    }
+
+    /**
+     * Keep the only thread busy so nothing submitted after this starts until the latch is released
+     */
+    private CountDownLatch blockExecutor() {
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return release;
+    }
+
+    private void awaitPreparation() throws Exception {
+        executor.submit(() -> {
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
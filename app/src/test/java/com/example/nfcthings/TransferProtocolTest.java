@@ -0,0 +1,160 @@
+package com.example.nfcthings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static com.example.nfcthings.TransferTestUtils.newReceiver;
+import static com.example.nfcthings.TransferTestUtils.randomBytes;
+import static com.example.nfcthings.TransferTestUtils.readFile;
+import static org.junit.Assert.*;
+
+/**
+ * Codec choice and compressed transfers.
+ */
+public class TransferProtocolTest {
+
+    // 2 Mbit/s, a congested Bluetooth or Wi-Fi link
+    private static final long NANOS_PER_BYTE = 4000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entropyOfConstantDataIsZero() {
+        assertEquals(0, TransferProtocol.estimateEntropy(new byte[4096], 0, 4096), 0);
+        assertEquals(0, TransferProtocol.estimateEntropy(new byte[16], 0, 0), 0);
+    }
+
+    @Test
+    public void entropyOfEveryByteValueOnceIsEightBits() {
+        byte[] data = new byte[512];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(8, TransferProtocol.estimateEntropy(data, 0, data.length), 1e-9);
+        // Only the given range counts
+        assertEquals(7, TransferProtocol.estimateEntropy(data, 0, 128), 1e-9);
+    }
+
+    @Test
+    public void compressedMediaIsPassedThrough() {
+        byte[] sample = randomBytes(TransferProtocol.SAMPLE_SIZE, 1);
+        assertTrue(TransferProtocol.estimateEntropy(sample, 0, sample.length) > TransferProtocol.ENTROPY_THRESHOLD);
+        assertEquals(TransferProtocol.CODEC_NONE, TransferProtocol.chooseCodec(sample, sample.length));
+    }
+
+    @Test
+    public void bitmapsAndTextAreDeflated() {
+        byte[] bitmap = bitmap(256, 128);
+        byte[] text = text(TransferProtocol.SAMPLE_SIZE, 2);
+        assertEquals(TransferProtocol.CODEC_DEFLATE, TransferProtocol.chooseCodec(bitmap, TransferProtocol.SAMPLE_SIZE));
+        assertEquals(TransferProtocol.CODEC_DEFLATE, TransferProtocol.chooseCodec(text, text.length));
+    }
+
+    @Test
+    public void bitmapRoundTripIsCompressed() throws Exception {
+        byte[] bitmap = bitmap(640, 480);
+
+        byte[] wire = send("screenshot.bmp", bitmap, TransferSender.CODEC_AUTO);
+        TransferProtocol.Header header = TransferProtocol.Header.readFrom(
+                new DataInputStream(new ByteArrayInputStream(wire)));
+
+        assertEquals(TransferProtocol.CODEC_DEFLATE, header.codec);
+        assertTrue("Sent " + wire.length + " bytes", wire.length < bitmap.length / 4);
+        assertArrayEquals(bitmap, receive(wire));
+    }
+
+    @Test
+    public void randomDataIsNotInflatedOnTheWire() throws Exception {
+        byte[] data = randomBytes(200 * 1024, 3);
+
+        byte[] wire = send("photo.jpg", data, TransferSender.CODEC_AUTO);
+
+        // Framing only: header, one length per chunk, end marker and trailer
+        assertTrue("Sent " + wire.length + " bytes", wire.length < data.length + 256);
+        assertArrayEquals(data, receive(wire));
+    }
+
+    @Test(expected = IOException.class)
+    public void headerAboveLargeFileLimitIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new TransferProtocol.Header("huge.bin", TransferUtils.ValidationHelper.LARGE_FILE_LIMIT + 1,
+                TransferProtocol.CODEC_NONE, 0).writeTo(new DataOutputStream(bytes));
+        TransferProtocol.Header.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void mixedCorpusIsFasterWithAutoCodecOnThrottledLink() throws Exception {
+        byte[][] corpus = {
+                bitmap(256, 256),
+                randomBytes(192 * 1024, 4),
+                text(96 * 1024, 5)
+        };
+
+        long passthrough = 0;
+        long auto = 0;
+        for (byte[] file : corpus) {
+            passthrough += timeSend(file, TransferProtocol.CODEC_NONE);
+            auto += timeSend(file, TransferSender.CODEC_AUTO);
+        }
+
+        // Two of the three files shrink severalfold and the third is passed through
+        assertTrue("Auto took " + auto / 1_000_000 + " ms, passthrough " + passthrough / 1_000_000 + " ms",
+                auto < passthrough * 3 / 4);
+    }
+
+    private static long timeSend(byte[] data, byte codec) throws IOException {
+        long start = System.nanoTime();
+        new TransferSender().send(new ByteArrayInputStream(data), "file", data.length, codec, null,
+                new TransferTestUtils.ThrottledOutputStream(NANOS_PER_BYTE), null);
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] send(String fileName, byte[] data, byte codec) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new TransferSender().send(new ByteArrayInputStream(data), fileName, data.length, codec, null, wire, null);
+        return wire.toByteArray();
+    }
+
+    private byte[] receive(byte[] wire) throws IOException {
+        return readFile(newReceiver(null).receive(new ByteArrayInputStream(wire), folder.newFolder(), null));
+    }
+
+    /**
+     * A 24-bit BMP of smooth gradients, like a screenshot or diagram
+     */
+    private static byte[] bitmap(int width, int height) {
+        int rowSize = (width * 3 + 3) & ~3;
+        byte[] data = new byte[54 + rowSize * height];
+        data[0] = 'B';
+        data[1] = 'M';
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = 54 + y * rowSize + x * 3;
+                data[pixel] = (byte) (x / 4);
+                data[pixel + 1] = (byte) (y / 4);
+                data[pixel + 2] = (byte) 128;
+            }
+        }
+        return data;
+    }
+
+    private static byte[] text(int size, long seed) {
+        String[] words = {"transfer", "the", "file", "over", "nfc", "and", "a", "socket", "to", "receiver"};
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
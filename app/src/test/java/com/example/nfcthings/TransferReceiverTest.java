@@ -0,0 +1,112 @@
+package com.example.nfcthings;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static com.example.nfcthings.TransferTestUtils.newReceiver;
+import static com.example.nfcthings.TransferTestUtils.randomBytes;
+import static com.example.nfcthings.TransferTestUtils.readFile;
+import static org.junit.Assert.*;
+
+/**
+ * Receiving into a directory, including the failure paths.
+ */
+public class TransferReceiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameNameDoesNotReplaceEarlierFile() throws Exception {
+        File directory = folder.newFolder();
+        byte[] first = randomBytes(1024, 1);
+        byte[] second = randomBytes(2048, 2);
+        byte[] third = randomBytes(512, 3);
+
+        File firstFile = receive("photo.jpg", first, directory);
+        File secondFile = receive("photo.jpg", second, directory);
+        File thirdFile = receive("photo.jpg", third, directory);
+
+        assertEquals("photo.jpg", firstFile.getName());
+        assertEquals("photo (1).jpg", secondFile.getName());
+        assertEquals("photo (2).jpg", thirdFile.getName());
+        assertArrayEquals(first, readFile(firstFile));
+        assertArrayEquals(second, readFile(secondFile));
+        assertArrayEquals(third, readFile(thirdFile));
+    }
+
+    @Test
+    public void pathFromPeerIsStripped() throws Exception {
+        File directory = folder.newFolder();
+
+        File file = receive("../../photo.jpg", randomBytes(100, 4), directory);
+
+        assertEquals(new File(directory, "photo.jpg"), file);
+    }
+
+    @Test
+    public void reservedNamesAreRejected() throws Exception {
+        File directory = folder.newFolder();
+        String[] names = {"", ".", "..", "a/..", "/", "photo.jpg" + TransferReceiver.PARTIAL_SUFFIX,
+                InboxIndex.INDEX_FILE_NAME};
+
+        for (String name : names) {
+            try {
+                receive(name, randomBytes(100, 5), directory);
+                fail("Accepted file name '" + name + "'");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void failureToCreatePartFileIsReportedToListener() throws Exception {
+        // Not a directory, so the partial file cannot be created
+        File directory = folder.newFile("inbox");
+        TransferTestUtils.RecordingListener listener = new TransferTestUtils.RecordingListener();
+
+        try {
+            newReceiver(null).receive(new ByteArrayInputStream(send("photo.jpg", randomBytes(1024, 6))),
+                    directory, listener);
+            fail("Receive should fail");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), listener.error);
+        }
+    }
+
+    @Test
+    public void fullVolumeFailsBeforeAnythingIsKept() throws Exception {
+        File directory = folder.newFolder();
+        TransferTestUtils.RecordingListener listener = new TransferTestUtils.RecordingListener();
+        TransferReceiver receiver = new TransferReceiver(null, (fd, size) -> {
+            throw new IOException("Not enough space for " + size + " bytes");
+        });
+
+        try {
+            receiver.receive(new ByteArrayInputStream(send("video.mp4", randomBytes(100 * 1024, 7))),
+                    directory, listener);
+            fail("Receive should fail");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), listener.error);
+        }
+        assertEquals(0, directory.list().length);
+    }
+
+    private static File receive(String fileName, byte[] data, File directory) throws IOException {
+        return newReceiver(null).receive(new ByteArrayInputStream(send(fileName, data)), directory, null);
+    }
+
+    private static byte[] send(String fileName, byte[] data) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new TransferSender().send(new ByteArrayInputStream(data), fileName, data.length, wire, null);
+        return wire.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.nfcthings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test data, file and listener helpers shared by the transfer tests.
+ */
+final class TransferTestUtils {
+
+    // posix_fallocate needs a device, so JVM tests take the sparse fallback
+    static final ReceivePipeline.Allocator SPARSE_ALLOCATOR = (fd, size) -> false;
+
+    private TransferTestUtils() {
+    }
+
+    /**
+     * A receiver that runs on the JVM
+     */
+    static TransferReceiver newReceiver(SessionCrypto.ChunkCipher cipher) {
+        return new TransferReceiver(cipher, SPARSE_ALLOCATOR);
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] result = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            assertEquals(result.length, TransferSender.readFully(in, result, result.length));
+        }
+        return result;
+    }
+
+    /**
+     * Discards bytes at a fixed rate, like a socket on a slow link
+     */
+    static class ThrottledOutputStream extends OutputStream {
+        private final long nanosPerByte;
+        private long start = -1;
+        private long written;
+
+        ThrottledOutputStream(long nanosPerByte) {
+            this.nanosPerByte = nanosPerByte;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (start < 0) {
+                start = System.nanoTime();
+            }
+            written += len;
+            long due = start + written * nanosPerByte;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Keeps the last error it was told about
+     */
+    static class RecordingListener implements TransferUtils.TransferStatusListener {
+        String error;
+
+        @Override
+        public void onTransferStarted() {
+        }
+
+        @Override
+        public void onTransferProgress(int progress) {
+        }
+
+        @Override
+        public void onTransferCompleted(boolean success, String message) {
+        }
+
+        @Override
+        public void onTransferError(String error) {
+            this.error = error;
+        }
+    }
+}